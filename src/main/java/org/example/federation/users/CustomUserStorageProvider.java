@@ -2,9 +2,21 @@ package org.example.federation.users;
 
 import lombok.extern.slf4j.Slf4j;
 import org.example.federation.users.adapter.UserAdapter;
+import org.example.federation.users.adapter.UserIdentityMap;
+import org.example.federation.users.cache.BloomFilter;
+import org.example.federation.users.cache.DegradedMode;
+import org.example.federation.users.cache.LookupCoalescer;
+import org.example.federation.users.cache.PageCursorCache;
+import org.example.federation.users.cache.SearchResultCache;
+import org.example.federation.users.cache.UserCountCache;
+import org.example.federation.users.cache.UserSearchIndex;
+import org.example.federation.users.cache.UserSnapshotCache;
 import org.example.federation.users.encoder.KeycloakBCryptPasswordEncoder;
+import org.example.federation.users.model.UserCredentials;
 import org.example.federation.users.model.UserEntity;
 import org.example.federation.users.model.UserRoleEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.example.federation.users.search.UserSearchQuery;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.credential.CredentialInput;
@@ -16,14 +28,19 @@ import org.keycloak.models.cache.OnUserCache;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
 import org.keycloak.storage.user.*;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import java.sql.Timestamp;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 @Slf4j
@@ -41,15 +58,134 @@ public class CustomUserStorageProvider implements
     protected EntityManager em;
     protected ComponentModel model;
     protected KeycloakSession session;
+    protected UserSnapshotCache userCache;
+    protected BloomFilter bloomFilter;
+    protected LookupCoalescer<UserSnapshot> lookupCoalescer;
+    protected DegradedMode degradedMode;
+    protected PageCursorCache pageCursors;
+    protected final CustomUserStorageProviderFactory factory;
+    protected final UserIdentityMap identityMap;
+    protected final boolean lookupIgnoreCase;
+    protected final boolean trigramSearch;
+    protected final double searchMinScore;
+    protected final int streamFetchSize;
+    protected final long countEstimateThreshold;
+    protected UserCountCache countCache;
+    protected SearchResultCache searchResults;
+    private RoleStorage roleStorage;
+    // действия над кэшами узла, которые выполняются после фиксации транзакции сессии
+    private List<Runnable> afterCommit;
     private final KeycloakBCryptPasswordEncoder encoder = new KeycloakBCryptPasswordEncoder();
     private static final boolean SIMULATION_DELETE_ACTION = true;
+    private static final int BATCH_SIZE = 500;
 
-    CustomUserStorageProvider(KeycloakSession session, ComponentModel model) {
+    // поиск по сходству: отбор по триграммным индексам оператором <% и ранжирование по лучшей оценке столбца
+    // (порог оператора устанавливается для транзакции запроса, см. applySimilarityThreshold)
+    private static final String SIMILARITY_SCORE = "greatest(" +
+            "word_similarity(:search, lower(u.login)), word_similarity(:search, lower(u.email)), " +
+            "word_similarity(:search, lower(u.first_name)), word_similarity(:search, lower(u.last_name)), " +
+            "word_similarity(:search, lower(u.middle_name)))";
+    private static final String SIMILARITY_CONDITION = "from privfastsm.accounts u where " +
+            "(:search <% lower(u.login) or :search <% lower(u.email) or :search <% lower(u.first_name) " +
+            "or :search <% lower(u.last_name) or :search <% lower(u.middle_name)) " +
+            "and " + SIMILARITY_SCORE + " >= :minScore";
+    private static final String SIMILARITY_SEARCH = "select u.* " + SIMILARITY_CONDITION +
+            " order by " + SIMILARITY_SCORE + " desc, u.login, u.id";
+    private static final String SIMILARITY_COUNT = "select count(*) " + SIMILARITY_CONDITION;
+
+    CustomUserStorageProvider(KeycloakSession session, ComponentModel model, CustomUserStorageProviderFactory factory) {
         this.session = session;
         this.model = model;
+        this.userCache = factory.getUserCache();
+        this.bloomFilter = factory.getBloomFilter(model.getId());
+        this.lookupCoalescer = factory.getLookupCoalescer();
+        this.degradedMode = factory.getDegradedMode();
+        this.pageCursors = factory.getPageCursors();
+        this.factory = factory;
+        this.lookupIgnoreCase = factory.isLookupIgnoreCase();
+        this.trigramSearch = factory.isTrigramSearch();
+        this.searchMinScore = factory.getSearchMinScore();
+        this.streamFetchSize = factory.getStreamFetchSize();
+        this.countEstimateThreshold = factory.getCountEstimateThreshold();
+        this.countCache = factory.getCountCache();
+        this.searchResults = factory.getSearchResults();
+        this.identityMap = new UserIdentityMap(lookupIgnoreCase);
         this.em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
     }
 
+    public KeycloakSession getSession() {
+        return session;
+    }
+
+    public ComponentModel getModel() {
+        return model;
+    }
+
+    public EntityManager getEntityManager() {
+        return em;
+    }
+
+    /**
+     * Хранилище ролей, общее для всех адаптеров пользователей этой сессии
+     * (создается при первом обращении, чтобы не получать EntityManager заново для каждой роли)
+     */
+    public RoleStorage getRoleStorage() {
+        if (roleStorage == null) {
+            roleStorage = new RoleStorage(session, model, factory.getRoleCatalogue());
+        }
+        return roleStorage;
+    }
+
+    /**
+     * Вызывается адаптером UserAdapter после изменения данных пользователя. Ключи карты идентичности сессии
+     * обновляются сразу, а записи кэша узла, найденные по id, прежнему имени пользователя и прежнему адресу
+     * электронной почты, сбрасываются только после фиксации транзакции сессии. Иначе другая сессия могла бы
+     * до фиксации снова поместить в кэш прежние данные пользователя.
+     * @param previous снимок данных пользователя до изменения
+     * @param current снимок данных пользователя после изменения
+     */
+    public void userUpdated(UserSnapshot previous, UserSnapshot current) {
+        identityMap.update(previous, current);
+        afterCommit(() -> {
+            searchResults.clear();
+            pageCursors.clear(model.getId());
+            factory.updateSearchIndex(index -> index.put(current));
+            userCache.invalidate(model.getId(), current.getAccountId());
+            userCache.invalidateUsername(model.getId(), previous.getUsername());
+            userCache.invalidateEmail(model.getId(), previous.getEmail());
+            if (bloomFilter != null) {
+                bloomFilter.put(current.getUsername());
+                bloomFilter.put(current.getEmail());
+            }
+        });
+    }
+
+    /**
+     * Выполняет действие после фиксации транзакции сессии keycloak. Действия сессии выполняются одной
+     * транзакцией, зарегистрированной в менеджере транзакций при первом вызове. При откате транзакции
+     * действия отбрасываются.
+     * @param action действие над общими кэшами узла
+     */
+    protected void afterCommit(Runnable action) {
+        if (afterCommit == null) {
+            List<Runnable> actions = new ArrayList<>();
+            afterCommit = actions;
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    afterCommit = null;
+                    actions.forEach(Runnable::run);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    afterCommit = null;
+                }
+            });
+        }
+        afterCommit.add(action);
+    }
+
     /**
      * Выполняет полное удаление роли из keycloak, синхронно роль удаляется из внешнего хранилища.
      * Изначально этот метод пытается найти роль во внешнем хранилище. Если роль найдена, тогда последовательно
@@ -62,7 +198,7 @@ public class CustomUserStorageProvider implements
     @Override
     public void preRemove(RealmModel realm, RoleModel role) {
 
-        UserRoleEntity roleEntity = new RoleStorage(session, model).findRoleByName(role.getName());
+        UserRoleEntity roleEntity = getRoleStorage().findRoleByName(role.getName());
         if (roleEntity != null) {
             em.getTransaction().begin();
             if (!roleEntity.getUsersList().isEmpty()) {
@@ -70,6 +206,7 @@ public class CustomUserStorageProvider implements
             }
             em.remove(roleEntity);
             em.getTransaction().commit();
+            factory.getRoleCatalogue().remove(roleEntity.getRoleId());
             log.info(">>>> удаление роли: \"{}\" из хранилища выполнено успешно", role.getName());
         } else {
             log.info(">>>> роли \"{}\" нет в хранилище. удаление записи не требуется", role.getName());
@@ -103,13 +240,79 @@ public class CustomUserStorageProvider implements
     public UserModel getUserById(RealmModel realm, String id) {
 
         String persistenceId = StorageId.externalId(id);
-        UserEntity user = em.find(UserEntity.class, Long.parseLong(persistenceId));
-
-        if (user == null) {
+        Long accountId = Long.parseLong(persistenceId);
+        UserAdapter adapter = identityMap.getById(accountId);
+        if (adapter != null) {
+            return adapter;
+        }
+        UserSnapshot snapshot = userCache.getById(model.getId(), accountId);
+        if (snapshot == null && degradedMode.isActive()) {
+            snapshot = serveStale(userCache.getStaleById(model.getId(), accountId));
+        }
+        if (snapshot == null) {
+            snapshot = timedLoad(DegradedMode.BY_ID, model.getId() + "|id|" + accountId,
+                    generation -> snapshotOf(em.find(UserEntity.class, accountId), generation));
+        }
+        if (snapshot == null) {
             log.info(">>>> невозможно найти пользователя по id = {} >>>>", persistenceId);
             return null;
         }
-        return new UserAdapter(session, realm, model, user);
+        return adapterOf(realm, snapshot);
+    }
+
+    /**
+     * Пакетная загрузка пользователей по списку keycloak id (например для списков участников ролей).
+     * Сначала используются адаптеры, уже загруженные в сессии, затем кэш узла. Остальные пользователи загружаются
+     * из jdbc хранилища запросами "id in (...)" порциями по BATCH_SIZE идентификаторов.
+     * @param realm модель области
+     * @param ids коллекция keycloak id пользователей
+     * @return список найденных пользователей в порядке входной коллекции (ненайденные пропускаются)
+     */
+    public List<UserModel> getUsersByIds(RealmModel realm, Collection<String> ids) {
+        return getUsersByAccountIds(realm, ids.stream()
+                .map(id -> Long.parseLong(StorageId.externalId(id)))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Пакетная загрузка пользователей по списку id хранилища (accounts.id), см. getUsersByIds()
+     * @param realm модель области
+     * @param accountIds список id пользователей в хранилище
+     * @return список найденных пользователей в порядке входного списка (ненайденные пропускаются)
+     */
+    public List<UserModel> getUsersByAccountIds(RealmModel realm, List<Long> accountIds) {
+
+        Map<Long, UserAdapter> found = new HashMap<>();
+        Set<Long> missing = new LinkedHashSet<>();
+        long generation = userCache.generation();
+
+        for (Long accountId : accountIds) {
+            if (found.containsKey(accountId) || missing.contains(accountId)) continue;
+
+            UserAdapter adapter = identityMap.getById(accountId);
+            if (adapter == null) {
+                UserSnapshot snapshot = userCache.getById(model.getId(), accountId);
+                if (snapshot != null) adapter = adapterOf(realm, snapshot);
+            }
+            if (adapter != null) {
+                found.put(accountId, adapter);
+            } else {
+                missing.add(accountId);
+            }
+        }
+
+        List<Long> toLoad = new ArrayList<>(missing);
+        for (int from = 0; from < toLoad.size(); from += BATCH_SIZE) {
+            List<Long> chunk = toLoad.subList(from, Math.min(from + BATCH_SIZE, toLoad.size()));
+            TypedQuery<UserEntity> query = em.createNamedQuery("getUsersByIds", UserEntity.class);
+            query.setParameter("ids", chunk);
+            query.getResultList().forEach(user -> found.put(user.getAccountId(), adapterOf(realm, snapshotOf(user, generation))));
+        }
+
+        return accountIds.stream()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
     /**
@@ -124,15 +327,29 @@ public class CustomUserStorageProvider implements
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
 
-        TypedQuery<UserEntity> query = em.createNamedQuery("getUserByUsername", UserEntity.class);
-        query.setParameter("username", username);
-        List<UserEntity> userList = query.getResultList();
+        UserAdapter adapter = identityMap.getByUsername(username);
+        if (adapter != null) {
+            return adapter;
+        }
+        UserSnapshot snapshot = userCache.getByUsername(model.getId(), username);
+        if (snapshot == null && degradedMode.isActive()) {
+            snapshot = serveStale(userCache.getStaleByUsername(model.getId(), username));
+        }
+        if (snapshot != null) {
+            return adapterOf(realm, snapshot);
+        }
+        if (bloomFilter != null && !bloomFilter.mightContain(username)) {
+            log.debug(">>>> пользователя с именем_пользователя = {} нет в хранилище (фильтр Блума) >>>>", username);
+            return null;
+        }
+        snapshot = timedLoad(DegradedMode.BY_USERNAME, lookupKey("|login|", username),
+                generation -> snapshotOf(findUserEntity("getUserByUsername", "username", username), generation));
 
-        if (userList.isEmpty()) {
+        if (snapshot == null) {
             log.info(">>>> невозможно найти пользователя по имени_пользователя = {} >>>>", username);
             return null;
         }
-        return new UserAdapter(session, realm, model, userList.get(0));
+        return adapterOf(realm, snapshot);
     }
 
     /**
@@ -145,15 +362,204 @@ public class CustomUserStorageProvider implements
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
 
-        TypedQuery<UserEntity> query = em.createNamedQuery("getUserByEmail", UserEntity.class);
-        query.setParameter("email", email);
-        List<UserEntity> userList = query.getResultList();
+        UserAdapter adapter = identityMap.getByEmail(email);
+        if (adapter != null) {
+            return adapter;
+        }
+        UserSnapshot snapshot = userCache.getByEmail(model.getId(), email);
+        if (snapshot == null && degradedMode.isActive()) {
+            snapshot = serveStale(userCache.getStaleByEmail(model.getId(), email));
+        }
+        if (snapshot != null) {
+            return adapterOf(realm, snapshot);
+        }
+        if (bloomFilter != null && !bloomFilter.mightContain(email)) {
+            log.debug(">>>> пользователя с email = {} нет в хранилище (фильтр Блума) >>>>", email);
+            return null;
+        }
+        snapshot = timedLoad(DegradedMode.BY_EMAIL, lookupKey("|email|", email),
+                generation -> snapshotOf(findUserEntity("getUserByEmail", "email", email), generation));
 
-        if (userList.isEmpty()) {
+        if (snapshot == null) {
             log.info(">>>> невозможно найти пользователя по email = {} >>>>", email);
             return null;
         }
-        return new UserAdapter(session, realm, model, userList.get(0));
+        return adapterOf(realm, snapshot);
+    }
+
+    /**
+     * Выполняет точный поиск пользователя по login или email. В режиме регистронезависимого поиска используется
+     * вариант запроса с суффиксом IgnoreCase, который сравнивает lower(столбец) с значением в нижнем регистре
+     * и выполняется одним обращением к индексу по выражению (см. UserStoreSchema).
+     * @param queryName имя именованного запроса точного поиска
+     * @param parameter имя параметра запроса
+     * @param value искомое значение
+     * @return найденный пользователь или null
+     * @throws ModelDuplicateException если в режиме без учета регистра найдено несколько пользователей,
+     * значения которых отличаются только регистром
+     */
+    protected UserEntity findUserEntity(String queryName, String parameter, String value) {
+
+        List<UserEntity> userList;
+        if (!lookupIgnoreCase) {
+            TypedQuery<UserEntity> query = em.createNamedQuery(queryName, UserEntity.class);
+            query.setParameter(parameter, value);
+            userList = query.getResultList();
+        } else {
+            TypedQuery<UserEntity> query = em.createNamedQuery(queryName + "IgnoreCase", UserEntity.class);
+            query.setParameter(parameter, value.toLowerCase(Locale.ROOT));
+            query.setMaxResults(2);
+            userList = query.getResultList();
+            if (userList.size() > 1) {
+                throw new ModelDuplicateException("В хранилище несколько пользователей с " + parameter + " = " + value);
+            }
+        }
+        if (userList.isEmpty()) {
+            if (bloomFilter != null) bloomFilter.falsePositive();
+            return null;
+        }
+        return userList.get(0);
+    }
+
+    /**
+     * Загружает снимок пользователя из jdbc хранилища, объединяя одновременные загрузки по ключу,
+     * и передает время загрузки режиму деградации. Поколение кэша узла фиксируется до загрузки и входит в ключ
+     * объединения: запрос, поступивший после сброса записей кэша, не присоединяется к загрузке, начатой до сброса.
+     * @param operation операция загрузки (для бюджета задержки режима деградации)
+     * @param key ключ объединения одновременных загрузок
+     * @param loader загрузка из jdbc хранилища, получает поколение кэша узла для snapshotOf()
+     * @return снимок данных пользователя или null
+     */
+    private UserSnapshot timedLoad(String operation, String key, LongFunction<UserSnapshot> loader) {
+        long generation = userCache.generation();
+        return lookupCoalescer.load(key + "#" + generation, () -> {
+            long started = System.nanoTime();
+            try {
+                return loader.apply(generation);
+            } finally {
+                degradedMode.record(operation, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            }
+        });
+    }
+
+    /**
+     * В режиме деградации возвращает устаревший снимок пользователя и запускает его асинхронное обновление
+     * @param stale снимок с истекшим временем жизни или null
+     * @return тот же снимок
+     */
+    private UserSnapshot serveStale(UserSnapshot stale) {
+        if (stale == null) {
+            return null;
+        }
+        degradedMode.staleServed();
+        factory.refreshAsync(model.getId(), stale.getAccountId());
+        log.debug(">>>> режим деградации: пользователь id = {} возвращен из устаревшего снимка", stale.getAccountId());
+        return stale;
+    }
+
+    /**
+     * Ключ объединения одновременных загрузок по login или email (с учетом режима поиска без учета регистра)
+     */
+    private String lookupKey(String kind, String value) {
+        return model.getId() + kind + (lookupIgnoreCase ? value.toLowerCase(Locale.ROOT) : value);
+    }
+
+    /**
+     * Создает снимок данных пользователя, загруженного из jdbc хранилища, и помещает его в кэш узла.
+     * Если пользователь не загружен в этой сессии, сущность отсоединяется, чтобы она не проверялась на изменения
+     * при сбросе контекста. Адаптер загрузит её заново только при изменении данных или работе с ролями.
+     * @param user сущность пользователя из jdbc хранилища или null
+     * @param generation поколение кэша узла, полученное до загрузки (снимок не помещается в кэш, если за время
+     *                   загрузки записи кэша удалялись)
+     * @return снимок данных пользователя или null
+     */
+    protected UserSnapshot snapshotOf(UserEntity user, long generation) {
+        if (user == null) {
+            return null;
+        }
+        UserSnapshot snapshot = UserSnapshot.of(user);
+        userCache.put(model.getId(), snapshot, generation);
+        if (identityMap.getById(user.getAccountId()) == null) {
+            em.detach(user);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Возвращает адаптер пользователя, загруженного в этой сессии, или создает и регистрирует в карте
+     * идентичности сессии новый адаптер для снимка данных пользователя
+     * @param realm рабочая область
+     * @param snapshot снимок данных пользователя
+     * @return адаптер пользовательской модели keycloak
+     */
+    protected UserAdapter adapterOf(RealmModel realm, UserSnapshot snapshot) {
+        UserAdapter existing = identityMap.getById(snapshot.getAccountId());
+        return existing != null ? existing : identityMap.register(new UserAdapter(this, realm, snapshot));
+    }
+
+    /**
+     * Возвращает адаптер для результата поиска. Если пользователь уже загружен в этой сессии, используется
+     * имеющийся адаптер, а сущность не отсоединяется: она может принадлежать этому адаптеру и содержать
+     * несохраненные изменения. Новый адаптер регистрируется в карте идентичности, чтобы изменения пользователя
+     * в сессии выполнялись через один экземпляр адаптера. Результаты поиска не помещаются в кэш узла,
+     * а сущность нового адаптера отсоединяется сразу после создания снимка, чтобы контекст сессии не рос
+     * при чтении потока.
+     * @param realm рабочая область
+     * @param user сущность пользователя из jdbc хранилища
+     * @return адаптер пользовательской модели keycloak
+     */
+    protected UserAdapter searchAdapter(RealmModel realm, UserEntity user) {
+        UserAdapter adapter = identityMap.getById(user.getAccountId());
+        if (adapter != null) {
+            return adapter;
+        }
+        adapter = identityMap.register(new UserAdapter(this, realm, UserSnapshot.of(user)));
+        em.detach(user);
+        return adapter;
+    }
+
+    /**
+     * Загружает результаты поиска по списку id хранилища (ответ индекса поиска в памяти узла или страница
+     * из кэша результатов поиска).
+     * Пользователи читаются при чтении потока запросами "id in (...)" порциями по BATCH_SIZE, поэтому результат
+     * без ограничения количества не загружается целиком. Адаптеры создаются так же, как в searchAdapter():
+     * они регистрируются в карте идентичности, не помещаются в кэш узла, а сущности новых адаптеров отсоединяются.
+     * @param realm рабочая область
+     * @param accountIds список id пользователей в хранилище
+     * @return поток пользователей в порядке входного списка (ненайденные пропускаются)
+     */
+    protected Stream<UserModel> searchAdapters(RealmModel realm, List<Long> accountIds) {
+        int chunks = (accountIds.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        return IntStream.range(0, chunks)
+                .mapToObj(i -> accountIds.subList(i * BATCH_SIZE, Math.min((i + 1) * BATCH_SIZE, accountIds.size())))
+                .flatMap(chunk -> searchAdaptersChunk(realm, chunk));
+    }
+
+    private Stream<UserModel> searchAdaptersChunk(RealmModel realm, List<Long> chunk) {
+        Map<Long, UserModel> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long accountId : chunk) {
+            UserAdapter adapter = identityMap.getById(accountId);
+            if (adapter == null) {
+                UserSnapshot snapshot = userCache.getById(model.getId(), accountId);
+                if (snapshot != null) adapter = adapterOf(realm, snapshot);
+            }
+            if (adapter != null) {
+                found.put(accountId, adapter);
+            } else {
+                missing.add(accountId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            em.createNamedQuery("getUsersByIds", UserEntity.class)
+                    .setParameter("ids", missing)
+                    .setHint("org.hibernate.readOnly", true)
+                    .getResultList()
+                    .forEach(user -> found.put(user.getAccountId(), searchAdapter(realm, user)));
+        }
+        return chunk.stream()
+                .map(found::get)
+                .filter(Objects::nonNull);
     }
 
     /*
@@ -190,7 +596,14 @@ public class CustomUserStorageProvider implements
         em.getTransaction().begin();
         em.persist(userEntity);
         em.getTransaction().commit();
-        return new UserAdapter(session, realm, model, userEntity);
+        countCache.added();
+        searchResults.clear();
+        pageCursors.clear(model.getId());
+        userCache.invalidateUsername(model.getId(), username);
+        if (bloomFilter != null) bloomFilter.put(username);
+        UserSnapshot snapshot = UserSnapshot.of(userEntity);
+        factory.updateSearchIndex(index -> index.put(snapshot));
+        return identityMap.register(new UserAdapter(this, realm, snapshot));
     }
 
     /**
@@ -214,6 +627,11 @@ public class CustomUserStorageProvider implements
         // удаляет пользователя из хранилища и keycloak (из хранилища удалению могут помешать внешние ключи)
         String persistenceId = StorageId.externalId(userModel.getId());
         UserEntity userEntity = em.find(UserEntity.class, Long.parseLong(persistenceId));
+        userCache.invalidate(model.getId(), Long.parseLong(persistenceId));
+        identityMap.remove(Long.parseLong(persistenceId));
+        searchResults.clear();
+        pageCursors.clear(model.getId());
+        factory.updateSearchIndex(index -> index.remove(Long.parseLong(persistenceId)));
         if (userEntity == null) {
             return false;
         }
@@ -223,12 +641,13 @@ public class CustomUserStorageProvider implements
         }
         em.remove(userEntity);
         em.getTransaction().commit();
+        countCache.removed();
         return true;
     }
 
     @Override
     public void onCache(RealmModel realm, CachedUserModel user, UserModel delegate) {
-        String password = ((UserAdapter)delegate).getPassword();
+        String password = getPassword(delegate);
         if (password != null) {
             user.getCachedWith().put(PASSWORD_CACHE_KEY, password);
         }
@@ -283,7 +702,9 @@ public class CustomUserStorageProvider implements
     }
 
     /**
-     * Возвращает значение пароля из кэша или из пользовательской модели передаваемой на вход
+     * Возвращает значение пароля из кэша или из пользовательской модели передаваемой на вход.
+     * Если пароля нет ни в кэше, ни в снимке адаптера, он загружается минимальной проекцией getUserCredentials()
+     * без загрузки полной сущности пользователя.
      * @param user пользовательская keycloak модель
      * @return строковое значение сохраненного пароля пользователя
      */
@@ -293,11 +714,31 @@ public class CustomUserStorageProvider implements
         if (user instanceof CachedUserModel) {
             password = (String)((CachedUserModel)user).getCachedWith().get(PASSWORD_CACHE_KEY);
         } else if (user instanceof UserAdapter) {
-            password = ((UserAdapter)user).getPassword();
+            return ((UserAdapter)user).getPassword();
+        }
+        if (password == null && user != null) {
+            UserCredentials credentials = getUserCredentials(Long.parseLong(StorageId.externalId(user.getId())));
+            if (credentials != null) {
+                password = credentials.getPassword();
+            }
         }
         return password;
     }
 
+    /**
+     * Загружает из jdbc хранилища только данные, необходимые для проверки учетных данных:
+     * id, login, password, status, blocking_start_date. Управляемая сущность UserEntity при этом не создается.
+     * @param accountId id пользователя (accounts.id)
+     * @return проекция учетных данных или null, если пользователь не найден
+     */
+    public UserCredentials getUserCredentials(Long accountId) {
+
+        TypedQuery<UserCredentials> query = em.createNamedQuery("getUserCredentialsById", UserCredentials.class);
+        query.setParameter("id", accountId);
+        List<UserCredentials> credentials = query.getResultList();
+        return credentials.isEmpty() ? null : credentials.get(0);
+    }
+
     /**
      * Выполняет смену пароля для пользователя, ввод выполняется в консоли администратора в карточке пользователя.
      * Данный метод вызывается исключительно для того, чтобы провайдер смог внести изменения в нашу jdbc базу данных.
@@ -360,15 +801,114 @@ public class CustomUserStorageProvider implements
 
     /**
      * Возвращает количество пользователей без учета какой-либо служебной учетной записи.
+     * Если включен кэш количества пользователей фабрики (countCache), возвращается его значение без запроса.
      * @param realm рабочая область
      * @return целочисленное значение общего количества пользователей федеративного хранилища
      */
     @Override
     public int getUsersCount(RealmModel realm) {
+        long cached = countCache.get();
+        if (cached >= 0) {
+            return (int) Math.min(cached, Integer.MAX_VALUE);
+        }
+        if (countEstimateThreshold > 0) {
+            long estimate = factory.getCountEstimate(this::estimateUsersCount);
+            if (estimate >= countEstimateThreshold) {
+                return (int) Math.min(estimate, Integer.MAX_VALUE);
+            }
+        }
         Object count = em.createNamedQuery("getUserCount").getSingleResult();
         return ((Number)count).intValue();
     }
 
+    /**
+     * В хранилище нет служебных учетных записей, поэтому результат не зависит от includeServiceAccount
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
+        return getUsersCount(realm);
+    }
+
+    /**
+     * Возвращает количество пользователей, соответствующих строке поиска, одним запросом count(*) с теми же
+     * условиями, что и поиск searchForUserStream(realm, search)
+     * @param realm рабочая область
+     * @param search список поисковых слов, разделенных пробелами ("*" - все пользователи)
+     * @return количество пользователей
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, String search) {
+
+        if (UserSearchQuery.tokenize(search).isEmpty()) {
+            return getUsersCount(realm);
+        }
+        Object count;
+        if (trigramSearch) {
+            applySimilarityThreshold();
+            Query query = em.createNativeQuery(SIMILARITY_COUNT);
+            query.setParameter("search", search.toLowerCase());
+            query.setParameter("minScore", searchMinScore);
+            count = query.getSingleResult();
+        } else {
+            count = UserSearchQuery.forSearch(search).count(em).getSingleResult();
+        }
+        return ((Number)count).intValue();
+    }
+
+    /**
+     * Возвращает количество пользователей, соответствующих параметрам, одним запросом count(*) с теми же
+     * условиями, что и поиск searchForUserStream(realm, params) (см. UserSearchQuery)
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params) {
+        return new UserSearchQuery(params).count(em).getSingleResult().intValue();
+    }
+
+    /**
+     * Членство пользователей хранилища в группах хранится в федеративном хранилище keycloak, поэтому количество
+     * считается по членству: уникальные пользователи этого компонента, состоящие хотя бы в одной из групп
+     * @param realm рабочая область
+     * @param groupIds id групп
+     * @return количество пользователей хранилища в группах
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, Set<String> groupIds) {
+        if (groupIds == null || groupIds.isEmpty()) {
+            return 0;
+        }
+        UserFederatedStorageProvider federatedStorage = session.getProvider(UserFederatedStorageProvider.class);
+        return (int) groupIds.stream()
+                .map(realm::getGroupById)
+                .filter(Objects::nonNull)
+                .flatMap(group -> federatedStorage.getMembershipStream(realm, group, null, null))
+                .filter(id -> model.getId().equals(StorageId.providerId(id)))
+                .distinct()
+                .count();
+    }
+
+    /**
+     * Количество пользователей, соответствующих строке поиска и состоящих в группах, считается реализацией
+     * по умолчанию UserQueryProvider (проверка групп найденных пользователей)
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, String search, Set<String> groupIds) {
+        return UserQueryProvider.super.getUsersCount(realm, search, groupIds);
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
+        return UserQueryProvider.super.getUsersCount(realm, params, groupIds);
+    }
+
+    /**
+     * Возвращает оценку количества пользователей из статистики планировщика pg_class.reltuples без чтения таблицы
+     * @return оценка количества строк таблицы privfastsm.accounts (-1, если статистика еще не собрана)
+     */
+    public long estimateUsersCount() {
+        Object estimate = em.createNamedQuery("estimateUserCount").getSingleResult();
+        return estimate == null ? -1 : ((Number)estimate).longValue();
+    }
+
     /**
      * Читает из федеративного jdbc хранилища данные пользователей в модели UserEntity
      * @param firstResult сдвиг в списке для начала чтения
@@ -376,15 +916,65 @@ public class CustomUserStorageProvider implements
      * @return коллекцию класса UserEntity, содержащую данные всех пользователей федеративного хранилища
      */
     public List<UserEntity> findAllUsers(int firstResult, int maxResults) {
+        return findPage("getAllUsers", cursor -> {
+            if (cursor == null) {
+                return em.createNamedQuery("getAllUsers", UserEntity.class);
+            }
+            if (cursor.isNullLogin()) {
+                return em.createNamedQuery("getAllUsersWithoutLoginAfter", UserEntity.class)
+                        .setParameter("id", cursor.getAccountId());
+            }
+            return em.createNamedQuery("getAllUsersAfter", UserEntity.class)
+                    .setParameter("login", cursor.getLogin())
+                    .setParameter("id", cursor.getAccountId());
+        }, firstResult, maxResults);
+    }
 
-        TypedQuery<UserEntity> query = em.createNamedQuery("getAllUsers", UserEntity.class);
-        if (firstResult != -1) {
+    /**
+     * Читает страницу пользователей в порядке (login, id). Если для сдвига firstResult есть курсор, сохраненный
+     * при чтении предыдущей страницы, используется запрос с условием "login >= :login and (login > :login or
+     * id > :id)", которое ограничивает диапазон индекса (login, id) снизу, и время чтения не зависит от номера
+     * страницы. Иначе страница читается через OFFSET.
+     * Строки без login упорядочены последними (nulls last): они не попадают в диапазон курсора с login и
+     * дочитываются отдельным запросом в порядке id, когда строки с login закончились.
+     * После чтения полной страницы сохраняется курсор следующей страницы.
+     * @param queryKey ключ запроса (имя запроса и строка поиска) для кэша курсоров
+     * @param queryFactory создает запрос, упорядоченный по (login, id), начиная с курсора (null - с начала,
+     *                     курсор без login - строки без login после курсора в порядке id)
+     * @param firstResult начальный сдвиг в списке
+     * @param maxResults максимальное количество в списке
+     * @return страница пользователей
+     */
+    protected List<UserEntity> findPage(String queryKey, Function<PageCursorCache.Cursor, TypedQuery<UserEntity>> queryFactory,
+                                        int firstResult, int maxResults) {
+
+        String cursorKey = model.getId() + "|" + queryKey;
+        PageCursorCache.Cursor cursor = firstResult > 0 ? pageCursors.get(cursorKey, firstResult) : null;
+        TypedQuery<UserEntity> query = queryFactory.apply(cursor);
+        if (cursor == null && firstResult != -1) {
             query.setFirstResult(firstResult);
         }
         if (maxResults != -1) {
             query.setMaxResults(maxResults);
         }
-        return query.getResultList();
+        List<UserEntity> users = query.getResultList();
+
+        if (cursor != null && !cursor.isNullLogin() && (maxResults == -1 || users.size() < maxResults)) {
+            // строки с login после курсора закончились - страница дочитывается строками без login
+            TypedQuery<UserEntity> tail = queryFactory.apply(PageCursorCache.Cursor.nullLogins());
+            if (maxResults != -1) {
+                tail.setMaxResults(maxResults - users.size());
+            }
+            users = new ArrayList<>(users);
+            users.addAll(tail.getResultList());
+        }
+
+        if (maxResults > 0 && users.size() == maxResults) {
+            UserEntity last = users.get(users.size() - 1);
+            pageCursors.put(cursorKey, Math.max(firstResult, 0) + users.size(),
+                    new PageCursorCache.Cursor(last.getUsername(), last.getAccountId()));
+        }
+        return users;
     }
 
     /**
@@ -392,6 +982,8 @@ public class CustomUserStorageProvider implements
      * @param search маска запроса для поиска
      *               <ul>
      *               <li>"*" - загрузит всех пользователей</li>
+     *               <li>"слово1 слово2 ..." - пользователи, у которых каждое слово содержится в login, email,
+     *               имени, фамилии, отчестве, подразделении или должности (см. UserSearchQuery)</li>
      *               <li>"#roles#{маска}" - загрузка и добавление ролей для пользователей, имена которых
      *               соответствуют маске поиска {маска}</li>
      *               </ul>
@@ -407,12 +999,32 @@ public class CustomUserStorageProvider implements
             return findAllUsers(firstResult, maxResults);
         }
         if (search.equalsIgnoreCase("***")) {
-            // загрузка всех ролей и их атрибутов в рабочую область
-            new RoleStorage(session, model).addAllRoles();
+            // фоновый импорт всех ролей и их атрибутов в рабочую область (ход импорта - в журнале)
+            RoleImportJob job = factory.startRoleImport(session.getContext().getRealm().getId());
+            log.info(">>>> импорт ролей хранилища в рабочую область: {}", job);
             return Collections.emptyList();
         }
-        TypedQuery<UserEntity> query = em.createNamedQuery("searchForUser", UserEntity.class);
-        query.setParameter("search", "%" + search.toLowerCase() + "%");
+        if (trigramSearch) {
+            return findUsersBySimilarity(search, firstResult, maxResults);
+        }
+        UserSearchQuery searchQuery = UserSearchQuery.forSearch(search);
+        return findPage("search|" + searchQuery.getSearchKey(), cursor -> searchQuery.select(em, cursor),
+                firstResult, maxResults);
+    }
+
+    /**
+     * Поиск пользователей по сходству строки поиска с login, email, именем, фамилией или отчеством (режим trigram).
+     * Строки отбираются по триграммным GIN индексам (см. UserStoreIndexes.ensureTrigramIndexes()) без полного
+     * сканирования таблицы и упорядочиваются по убыванию лучшей оценки сходства word_similarity.
+     * @param search строка поиска
+     * @param firstResult начальный сдвиг в списке
+     * @param maxResults максимальное количество в списке
+     * @return пользователи с оценкой сходства не ниже searchMinScore
+     */
+    @SuppressWarnings("unchecked")
+    public List<UserEntity> findUsersBySimilarity(String search, int firstResult, int maxResults) {
+
+        Query query = similarityQuery(search);
         if (firstResult != -1) {
             query.setFirstResult(firstResult);
         }
@@ -422,6 +1034,65 @@ public class CustomUserStorageProvider implements
         return query.getResultList();
     }
 
+    private Query similarityQuery(String search) {
+        applySimilarityThreshold();
+        Query query = em.createNativeQuery(SIMILARITY_SEARCH, UserEntity.class);
+        query.setParameter("search", search.toLowerCase());
+        query.setParameter("minScore", searchMinScore);
+        return query;
+    }
+
+    /**
+     * Оператор {@code <%} отбирает строки по индексу с порогом pg_trgm.word_similarity_threshold. Порог
+     * устанавливается равным минимальной оценке сходства только для текущей транзакции (set_config с is_local),
+     * поэтому настройка не затрагивает другие соединения и не сохраняется в базе данных.
+     */
+    private void applySimilarityThreshold() {
+        em.createNativeQuery("select set_config('pg_trgm.word_similarity_threshold', :threshold, true)")
+                .setParameter("threshold", String.valueOf(searchMinScore))
+                .getSingleResult();
+    }
+
+    /**
+     * Поток пользователей, соответствующих строке поиска, без ограничения количества (например "*" - все
+     * пользователи при выгрузке или синхронизации). Результат не собирается в список: строки читаются курсором
+     * jdbc порциями по streamFetchSize, а адаптеры результатов поиска отсоединяют прочитанные сущности
+     * (см. searchAdapter), поэтому контекст хранения сессии не растет. В карте идентичности сессии остаются
+     * только снимки прочитанных пользователей.
+     * Поток должен быть прочитан (или закрыт) в пределах транзакции сессии.
+     * @param search маска запроса для поиска (см. findUsers)
+     * @param firstResult начальный сдвиг в списке
+     * @return поток сущностей пользователей
+     */
+    public Stream<UserEntity> streamUsers(String search, int firstResult) {
+
+        Query query;
+        if (search.equalsIgnoreCase("*")) {
+            query = em.createNamedQuery("getAllUsers", UserEntity.class);
+        } else if (search.equalsIgnoreCase("***")) {
+            return findUsers(search, -1, -1).stream();
+        } else if (trigramSearch) {
+            query = similarityQuery(search);
+        } else {
+            query = UserSearchQuery.forSearch(search).select(em);
+        }
+        if (firstResult > 0) {
+            query.setFirstResult(firstResult);
+        }
+        return stream(query);
+    }
+
+    /**
+     * Выполняет запрос с чтением результата курсором jdbc порциями по streamFetchSize строк.
+     * Сущности читаются в режиме только для чтения (без снимков для проверки изменений).
+     */
+    @SuppressWarnings("unchecked")
+    protected Stream<UserEntity> stream(Query query) {
+        return query.setHint("org.hibernate.fetchSize", streamFetchSize)
+                .setHint("org.hibernate.readOnly", true)
+                .getResultStream();
+    }
+
     /**
      * Ищет пользователей, чье имя пользователя, адрес почты, имя или фамилия содержат любую строку поиска.
      * Если возможно, реализации должны обрабатывать значения параметров как шаблоны частичного совпадения
@@ -432,8 +1103,7 @@ public class CustomUserStorageProvider implements
      */
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, String search) {
-        return findUsers(search, -1, -1).stream()
-                .map(user -> new UserAdapter(session, realm, model, user));
+        return searchForUserStream(realm, search, null, null);
     }
 
     /**
@@ -448,8 +1118,36 @@ public class CustomUserStorageProvider implements
      */
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
-        return findUsers(search, firstResult, maxResults).stream()
-                .map(user -> new UserAdapter(session, realm, model, user));
+
+        int first = firstResult == null || firstResult < 0 ? -1 : firstResult;
+        int max = maxResults == null || maxResults < 0 ? -1 : maxResults;
+        UserSearchIndex searchIndex = factory.getSearchIndex(first);
+        List<Long> indexed = searchIndex != null ? searchIndex.search(search, first, max) : null;
+        if (indexed != null) {
+            // ответ индекса поиска в памяти узла: загружаются только найденные пользователи
+            return searchAdapters(realm, indexed);
+        }
+        if (max == -1) {
+            return streamUsers(search, first)
+                    .map(user -> searchAdapter(realm, user));
+        }
+        if (search.equals("***")) {
+            return findUsers(search, first, max).stream()
+                    .map(user -> searchAdapter(realm, user));
+        }
+
+        // страницы результатов поиска кэшируются как списки id и собираются пакетной загрузкой результатов поиска
+        String searchKey = trigramSearch ? search.trim().toLowerCase(Locale.ROOT) : UserSearchQuery.forSearch(search).getSearchKey();
+        List<Long> cachedIds = searchResults.get(model.getId(), searchKey, first, max);
+        if (cachedIds != null) {
+            return searchAdapters(realm, cachedIds);
+        }
+        long generation = searchResults.generation();
+        List<UserEntity> users = findUsers(search, first, max);
+        searchResults.put(model.getId(), searchKey, first, max,
+                users.stream().map(UserEntity::getAccountId).collect(Collectors.toList()), generation);
+        return users.stream()
+                .map(user -> searchAdapter(realm, user));
     }
 
     /**
@@ -471,18 +1169,32 @@ public class CustomUserStorageProvider implements
      * данный идентификатор пользователя (строка с учетом регистра)</li>
      * </ul>
      *  Этот метод используется REST API при запросе пользователей.
+     *  Параметры, которые поддерживает хранилище, преобразуются в условия запроса (см. UserSearchQuery).
      * @return ненулевой {@link Stream} пользователей, соответствующих параметрам поиска.
      */
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params) {
-        return findAllUsers(-1, -1).stream()
-                .map(user -> new UserAdapter(session, realm, model, user));
+        return searchForUserStream(realm, params, null, null);
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-        return findAllUsers(firstResult, maxResults).stream()
-                .map(user -> new UserAdapter(session, realm, model, user));
+
+        String search = params.get(UserModel.SEARCH);
+        if ("***".equals(search)) {
+            // загрузка всех ролей и их атрибутов в рабочую область (см. findUsers)
+            return findUsers(search, -1, -1).stream()
+                    .map(user -> searchAdapter(realm, user));
+        }
+        TypedQuery<UserEntity> query = new UserSearchQuery(params).select(em);
+        if (firstResult != null && firstResult >= 0) {
+            query.setFirstResult(firstResult);
+        }
+        if (maxResults != null && maxResults >= 0) {
+            query.setMaxResults(maxResults);
+        }
+        return stream(query)
+                .map(user -> searchAdapter(realm, user));
     }
 
     @Override
@@ -490,9 +1202,46 @@ public class CustomUserStorageProvider implements
         return Stream.empty();
     }
 
+    /**
+     * Ищет пользователей с точным значением атрибута. Поддерживаются атрибуты, которые хранятся в столбцах таблицы
+     * privfastsm.accounts: phone, department, position, ip_address (ip), middle_name. Поиск выполняется
+     * по индексам этих столбцов (см. UserStoreIndexes.ensureAttributeIndexes()).
+     * @param realm рабочая область
+     * @param attrName имя атрибута
+     * @param attrValue значение атрибута
+     * @return поток пользователей или пустой поток, если атрибут не хранится в хранилище
+     */
     @Override
     public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-        return Stream.empty();
+        return searchForUserByUserAttributeStream(realm, attrName, attrValue, null, null);
+    }
+
+    /**
+     * Постраничный поиск пользователей с точным значением атрибута в порядке (login, id)
+     * @param realm рабочая область
+     * @param attrName имя атрибута
+     * @param attrValue значение атрибута
+     * @param firstResult первый результат для возврата. Игнорируется, если значение отрицательное, или null.
+     * @param maxResults максимальное количество возвращаемых результатов. Игнорируется, если отрицательный или null.
+     * @return поток пользователей или пустой поток, если атрибут не хранится в хранилище
+     */
+    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue,
+                                                                 Integer firstResult, Integer maxResults) {
+
+        String field = UserSearchQuery.exactField(attrName);
+        if (field == null || attrValue == null) {
+            log.debug(">>>> поиск по атрибуту \"{}\" не поддерживается хранилищем", attrName);
+            return Stream.empty();
+        }
+        TypedQuery<UserEntity> query = UserSearchQuery.selectByAttribute(em, field, attrValue);
+        if (firstResult != null && firstResult >= 0) {
+            query.setFirstResult(firstResult);
+        }
+        if (maxResults != null && maxResults >= 0) {
+            query.setMaxResults(maxResults);
+        }
+        return stream(query)
+                .map(user -> searchAdapter(realm, user));
     }
 
 
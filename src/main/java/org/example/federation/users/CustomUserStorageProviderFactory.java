@@ -1,19 +1,145 @@
 package org.example.federation.users;
 
 import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.cache.BloomFilter;
+import org.example.federation.users.cache.DegradedMode;
+import org.example.federation.users.cache.LookupCoalescer;
+import org.example.federation.users.cache.PageCursorCache;
+import org.example.federation.users.cache.RoleCatalogue;
+import org.example.federation.users.cache.SearchResultCache;
+import org.example.federation.users.cache.StoreChangeListener;
+import org.example.federation.users.cache.StoreChangeWatcher;
+import org.example.federation.users.cache.UserCacheWarmup;
+import org.example.federation.users.cache.UserCountCache;
+import org.example.federation.users.cache.UserSearchIndex;
+import org.example.federation.users.cache.UserSnapshotCache;
+import org.example.federation.users.model.RoleSnapshot;
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserRoleEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.example.federation.users.schema.UserStoreIndexes;
+import org.example.federation.users.schema.UserStoreSchema;
+import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
 
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
 @Slf4j
-public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider> {
+public class CustomUserStorageProviderFactory implements
+        UserStorageProviderFactory<CustomUserStorageProvider>,
+        StoreChangeListener
+{
 
     public static final String PROVIDER_ID = "USER_STORAGE";
 
+    private static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+    private static final int DEFAULT_CACHE_TTL_SECONDS = 300;
+    private static final long DEFAULT_BLOOM_EXPECTED_USERS = 1000000;
+    private static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    private static final int STATISTICS_INTERVAL_MINUTES = 10;
+    private static final int DEFAULT_STREAM_FETCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 500;
+    private static final int DEFAULT_INVALIDATION_POLL_SECONDS = 5;
+    private static final String INVALIDATION_NOTIFY = "notify";
+    private static final String INVALIDATION_POLL = "poll";
+    private static final int DEFAULT_WARMUP_LIMIT = 5000;
+    private static final int DEFAULT_POOL_SIZE = 20;
+    private static final double DEFAULT_WARMUP_POOL_SHARE = 0.2;
+    private static final long DEFAULT_COALESCE_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_DEGRADED_BUDGET_MILLIS = 500;
+    private static final int DEFAULT_DEGRADED_SWITCH_ON = 5;
+    private static final int DEFAULT_DEGRADED_SWITCH_OFF = 20;
+    private static final int DEFAULT_DEGRADED_STALE_SECONDS = 3600;
+    public static final String SEARCH_LIKE = "like";
+    public static final String SEARCH_TRIGRAM = "trigram";
+    private static final double DEFAULT_SEARCH_MIN_SCORE = 0.3;
+    private static final int DEFAULT_CURSOR_CACHE_SIZE = 1000;
+    private static final int DEFAULT_CURSOR_TTL_SECONDS = 600;
+    private static final int DEFAULT_COUNT_CACHE_REFRESH_SECONDS = 60;
+    private static final long COUNT_ESTIMATE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final int DEFAULT_SEARCH_CACHE_SIZE = 500;
+    private static final int DEFAULT_ROLE_CATALOGUE_REFRESH_SECONDS = 300;
+    private static final int DEFAULT_ROLE_IMPORT_CHUNK_SIZE = 100;
+    private static final int DEFAULT_SEARCH_CACHE_TTL_SECONDS = 10;
+
+    private UserSnapshotCache userCache = new UserSnapshotCache(DEFAULT_CACHE_MAX_SIZE, DEFAULT_CACHE_TTL_SECONDS * 1000L, 0, false);
+    private boolean lookupIgnoreCase;
+    private boolean provisionSchema = true;
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    private boolean bloomEnabled = true;
+    private long bloomExpectedUsers = DEFAULT_BLOOM_EXPECTED_USERS;
+    private double bloomFalsePositiveRate = DEFAULT_BLOOM_FALSE_POSITIVE_RATE;
+    private String invalidationMode = INVALIDATION_NOTIFY;
+    private int invalidationPollSeconds = DEFAULT_INVALIDATION_POLL_SECONDS;
+    private int streamFetchSize = DEFAULT_STREAM_FETCH_SIZE;
+    private String jdbcUrl;
+    private String jdbcUser;
+    private String jdbcPassword;
+    private StoreChangeWatcher changeWatcher;
+    private boolean warmupEnabled = true;
+    private int warmupLimit = DEFAULT_WARMUP_LIMIT;
+    private int warmupPoolSize = DEFAULT_POOL_SIZE;
+    private double warmupPoolShare = DEFAULT_WARMUP_POOL_SHARE;
+    private String warmupQuery;
+    private UserCacheWarmup warmup;
+    private LookupCoalescer<UserSnapshot> lookupCoalescer = new LookupCoalescer<>(DEFAULT_COALESCE_TIMEOUT_MILLIS);
+    private DegradedMode degradedMode = new DegradedMode(false, DEFAULT_DEGRADED_BUDGET_MILLIS,
+            DEFAULT_DEGRADED_SWITCH_ON, DEFAULT_DEGRADED_SWITCH_OFF);
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private String searchMode = SEARCH_LIKE;
+    private double searchMinScore = DEFAULT_SEARCH_MIN_SCORE;
+    private boolean searchIndexes;
+    private boolean attributeIndexes;
+    private long countEstimateThreshold;
+    private volatile long countEstimate = -1;
+    private volatile long countEstimateAt;
+    private UserCountCache countCache = new UserCountCache(UserCountCache.Mode.NONE, 0);
+    private int roleImportChunkSize = DEFAULT_ROLE_IMPORT_CHUNK_SIZE;
+    private final Map<String, RoleImportJob> roleImports = new ConcurrentHashMap<>();
+    private RoleCatalogue roleCatalogue = new RoleCatalogue(DEFAULT_ROLE_CATALOGUE_REFRESH_SECONDS * 1000L);
+    private SearchResultCache searchResults = new SearchResultCache(DEFAULT_SEARCH_CACHE_SIZE, DEFAULT_SEARCH_CACHE_TTL_SECONDS * 1000L);
+    private boolean searchIndexEnabled;
+    private volatile UserSearchIndex searchIndex;
+    // время первой публикации индекса поиска (до нее поиск выполнялся в базе данных)
+    private volatile long searchIndexPublishedAt;
+    // изменения индекса поиска, сделанные во время построения нового индекса (повторяются в нем перед заменой)
+    private final Map<UserSearchIndex, List<Consumer<UserSearchIndex>>> searchIndexBuilds = new IdentityHashMap<>();
+    private PageCursorCache pageCursors = new PageCursorCache(DEFAULT_CURSOR_CACHE_SIZE, DEFAULT_CURSOR_TTL_SECONDS * 1000L);
+
+    private KeycloakSessionFactory sessionFactory;
+    // короткие периодические задачи и обновление снимков в режиме деградации, которые не должны ждать длинных задач
+    private ScheduledExecutorService executor;
+    // длинные задачи: построение фильтров Блума и индекса поиска, прогрев кэша, импорт ролей
+    private ExecutorService jobExecutor;
+
     @Override
     public CustomUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        return new CustomUserStorageProvider(session, model);
+        return new CustomUserStorageProvider(session, model, this);
     }
 
     @Override
@@ -21,6 +147,227 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
         UserStorageProviderFactory.super.onCreate(session, realm, model);
     }
 
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        userCache.clear(newModel.getId());
+        pageCursors.clear(newModel.getId());
+        searchResults.clear();
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        userCache.clear(model.getId());
+        pageCursors.clear(model.getId());
+        searchResults.clear();
+        bloomFilters.remove(model.getId());
+    }
+
+    /**
+     * Настройки провайдера задаются параметрами SPI (например --spi-storage-USER_STORAGE-cache-ttl=60)
+     * <ul>
+     * <li>cacheMaxSize - максимальное количество снимков пользователей в кэше (0 - кэш отключен)</li>
+     * <li>cacheTtl - время жизни снимка пользователя в секундах</li>
+     * <li>bloomEnabled - фильтр Блума для отрицательных ответов по login и email (true/false), используется
+     * только вместе с наблюдением за изменениями хранилища (invalidation = notify или poll)</li>
+     * <li>bloomExpectedUsers - ожидаемое количество пользователей в хранилище</li>
+     * <li>bloomFalsePositiveRate - допустимая доля ложноположительных ответов фильтра</li>
+     * <li>lookupIgnoreCase - поиск по login и email без учета регистра по индексам lower(login), lower(email)
+     * (такой поиск всегда выполняется в хранилище, кэш узла ищет пользователей только по id)</li>
+     * <li>provisionSchema - создавать недостающие индексы и триггеры в схеме privfastsm (false - только проверять).
+     * Индексы строятся в фоне командой CREATE INDEX CONCURRENTLY, те же команды для ручного выполнения
+     * находятся в файле db/privfastsm-indexes.sql</li>
+     * <li>invalidation - сброс кэша при изменениях хранилища другими узлами и системами: notify (LISTEN/NOTIFY
+     * с опросом журнала изменений при потере соединения), poll (только опрос журнала), none (отключен).
+     * Без наблюдения за изменениями пользователи, добавленные в хранилище в обход провайдера, могут быть
+     * отвергнуты фильтром Блума до его перестроения</li>
+     * <li>invalidationPollInterval - интервал опроса журнала изменений в секундах</li>
+     * <li>jdbcUrl, jdbcUser, jdbcPassword - параметры выделенного соединения наблюдения за изменениями
+     * (по умолчанию берутся из persistence.xml единицы "user-store")</li>
+     * <li>warmupEnabled - прогрев кэша пользователей после запуска (true/false)</li>
+     * <li>warmupLimit - количество пользователей, загружаемых при прогреве (не больше cacheMaxSize)</li>
+     * <li>warmupQuery - sql запрос, возвращающий id недавно активных пользователей (по умолчанию - по дате
+     * последней смены пароля password_change_date)</li>
+     * <li>warmupPoolSize, warmupPoolShare - размер пула соединений хранилища и доля пула, которую может
+     * занимать прогрев</li>
+     * <li>coalesceTimeout - максимальное время ожидания (мс) одновременной загрузки того же пользователя
+     * другим потоком, после которого поток загружает пользователя самостоятельно</li>
+     * <li>degradedEnabled - режим деградации при медленном хранилище (true/false): при превышении бюджета задержки
+     * пользователи, отсутствующие в кэше, возвращаются из последнего устаревшего снимка с асинхронным обновлением</li>
+     * <li>degradedBudget - бюджет задержки загрузки пользователя (мс), degradedBudgetById, degradedBudgetByUsername,
+     * degradedBudgetByEmail - бюджеты отдельных операций</li>
+     * <li>degradedSwitchOn, degradedSwitchOff - количество подряд загрузок дольше бюджета для включения режима
+     * и в пределах бюджета для его выключения</li>
+     * <li>degradedStaleTtl - время (сек.) хранения снимка в кэше после истечения cacheTtl для режима деградации</li>
+     * <li>searchMode - режим поиска пользователей в консоли администратора: like (каждое слово строки поиска
+     * содержится в login, email, имени, фамилии, отчестве, подразделении или должности)
+     * или trigram (сходство по триграммным индексам pg_trgm для login, email, имени, фамилии и отчества
+     * с ранжированием по оценке сходства)</li>
+     * <li>searchMinScore - минимальная оценка сходства (0..1) в режиме trigram</li>
+     * <li>searchIndexes - создавать триграммные индексы pg_trgm (7 GIN индексов) для поиска по словам в режиме
+     * like, по умолчанию false (в режиме trigram индексы создаются всегда)</li>
+     * <li>searchIndexEnabled - инвертированный триграммный индекс пользователей в памяти узла для поиска
+     * в консоли администратора в режиме like (true/false). Индекс строится при запуске чтением таблицы
+     * privfastsm.accounts и обновляется изменениями провайдера и уведомлениями об изменениях хранилища
+     * (при invalidation = none изменения, сделанные другими узлами, в индекс не попадают)</li>
+     * <li>countEstimateThreshold - количество пользователей, начиная с которого общее количество пользователей
+     * без фильтра возвращается по оценке планировщика pg_class.reltuples без подсчета строк (0 - всегда
+     * точный подсчет)</li>
+     * <li>countCache - кэш общего количества пользователей: none (отключен), exact (точный подсчет
+     * с фоновым обновлением и учетом добавления и удаления пользователей этим узлом), approximate (оценка
+     * планировщика pg_class.reltuples с фоновым обновлением)</li>
+     * <li>countCacheRefresh - интервал фонового обновления кэша количества пользователей в секундах</li>
+     * <li>searchCacheSize - количество страниц результатов поиска в кэше узла (0 - кэш отключен)</li>
+     * <li>searchCacheTtl - время жизни страницы результатов поиска в секундах. Любое изменение пользователей
+     * сбрасывает кэш</li>
+     * <li>roleCatalogueRefresh - интервал полной загрузки каталога ролей хранилища с правами в секундах
+     * (0 - каталог отключен, роли ищутся запросом к хранилищу). Между загрузками каталог обновляется при
+     * сохранении и удалении ролей и по уведомлениям об изменениях ролей и прав</li>
+     * <li>roleImportChunkSize - количество ролей в одной транзакции фонового импорта ролей хранилища
+     * в рабочую область (поиск пользователей "***")</li>
+     * <li>attributeIndexes - создавать индексы по столбцам phone, department, position, ip, middle_name
+     * для поиска пользователей по атрибутам, по умолчанию false</li>
+     * <li>pageCursorCacheSize - количество курсоров постраничного чтения пользователей в порядке (login, id),
+     * по которым следующая страница читается без OFFSET (0 - чтение страниц только через OFFSET)</li>
+     * <li>pageCursorTtl - время жизни курсора постраничного чтения в секундах</li>
+     * <li>streamFetchSize - количество строк, читаемых курсором jdbc за одно обращение при потоковом чтении
+     * пользователей (выгрузка всех пользователей, поиск без ограничения количества)</li>
+     * </ul>
+     */
+    @Override
+    public void init(Config.Scope config) {
+        lookupIgnoreCase = config.getBoolean("lookupIgnoreCase", false);
+        provisionSchema = config.getBoolean("provisionSchema", true);
+
+        int maxSize = config.getInt("cacheMaxSize", DEFAULT_CACHE_MAX_SIZE);
+        int ttl = config.getInt("cacheTtl", DEFAULT_CACHE_TTL_SECONDS);
+        boolean degradedEnabled = config.getBoolean("degradedEnabled", false);
+        int staleTtl = degradedEnabled ? config.getInt("degradedStaleTtl", DEFAULT_DEGRADED_STALE_SECONDS) : 0;
+        userCache = new UserSnapshotCache(maxSize, ttl * 1000L, staleTtl * 1000L, lookupIgnoreCase);
+        log.info(">>>>>>>>> UserStorageProviderFactory >>>>>>>>> кэш пользователей: размер = {}, ttl = {} сек.", maxSize, ttl);
+
+        bloomEnabled = config.getBoolean("bloomEnabled", true);
+        bloomExpectedUsers = config.getLong("bloomExpectedUsers", DEFAULT_BLOOM_EXPECTED_USERS);
+        bloomFalsePositiveRate = Double.parseDouble(
+                config.get("bloomFalsePositiveRate", String.valueOf(DEFAULT_BLOOM_FALSE_POSITIVE_RATE)));
+
+        invalidationMode = config.get("invalidation", INVALIDATION_NOTIFY);
+        invalidationPollSeconds = config.getInt("invalidationPollInterval", DEFAULT_INVALIDATION_POLL_SECONDS);
+        jdbcUrl = config.get("jdbcUrl");
+        jdbcUser = config.get("jdbcUser");
+        jdbcPassword = config.get("jdbcPassword");
+
+        warmupEnabled = config.getBoolean("warmupEnabled", true);
+        warmupLimit = Math.min(config.getInt("warmupLimit", DEFAULT_WARMUP_LIMIT), maxSize);
+        warmupQuery = config.get("warmupQuery");
+        warmupPoolSize = config.getInt("warmupPoolSize", DEFAULT_POOL_SIZE);
+        warmupPoolShare = Double.parseDouble(config.get("warmupPoolShare", String.valueOf(DEFAULT_WARMUP_POOL_SHARE)));
+
+        lookupCoalescer = new LookupCoalescer<>(config.getLong("coalesceTimeout", DEFAULT_COALESCE_TIMEOUT_MILLIS));
+
+        searchMode = config.get("searchMode", SEARCH_LIKE);
+        searchMinScore = Double.parseDouble(config.get("searchMinScore", String.valueOf(DEFAULT_SEARCH_MIN_SCORE)));
+        searchIndexes = config.getBoolean("searchIndexes", false);
+        attributeIndexes = config.getBoolean("attributeIndexes", false);
+        countEstimateThreshold = config.getLong("countEstimateThreshold", 0L);
+        roleImportChunkSize = config.getInt("roleImportChunkSize", DEFAULT_ROLE_IMPORT_CHUNK_SIZE);
+        roleCatalogue = new RoleCatalogue(
+                config.getInt("roleCatalogueRefresh", DEFAULT_ROLE_CATALOGUE_REFRESH_SECONDS) * 1000L);
+        searchResults = new SearchResultCache(config.getInt("searchCacheSize", DEFAULT_SEARCH_CACHE_SIZE),
+                config.getInt("searchCacheTtl", DEFAULT_SEARCH_CACHE_TTL_SECONDS) * 1000L);
+        countCache = new UserCountCache(countCacheMode(config.get("countCache", "none")),
+                config.getInt("countCacheRefresh", DEFAULT_COUNT_CACHE_REFRESH_SECONDS) * 1000L);
+        searchIndexEnabled = config.getBoolean("searchIndexEnabled", false);
+        if (searchIndexEnabled && SEARCH_TRIGRAM.equals(searchMode)) {
+            log.warn(">>>> индекс поиска в памяти не используется в режиме поиска trigram");
+            searchIndexEnabled = false;
+        }
+        streamFetchSize = config.getInt("streamFetchSize", DEFAULT_STREAM_FETCH_SIZE);
+        pageCursors = new PageCursorCache(config.getInt("pageCursorCacheSize", DEFAULT_CURSOR_CACHE_SIZE),
+                config.getInt("pageCursorTtl", DEFAULT_CURSOR_TTL_SECONDS) * 1000L);
+
+        long budget = config.getLong("degradedBudget", DEFAULT_DEGRADED_BUDGET_MILLIS);
+        degradedMode = new DegradedMode(degradedEnabled, budget,
+                config.getInt("degradedSwitchOn", DEFAULT_DEGRADED_SWITCH_ON),
+                config.getInt("degradedSwitchOff", DEFAULT_DEGRADED_SWITCH_OFF));
+        degradedMode.setBudget(DegradedMode.BY_ID, config.getLong("degradedBudgetById", budget));
+        degradedMode.setBudget(DegradedMode.BY_USERNAME, config.getLong("degradedBudgetByUsername", budget));
+        degradedMode.setBudget(DegradedMode.BY_EMAIL, config.getLong("degradedBudgetByEmail", budget));
+        if (degradedEnabled) {
+            log.info(">>>>>>>>> UserStorageProviderFactory >>>>>>>>> режим деградации: бюджет = {} мс, " +
+                    "устаревшие снимки хранятся {} сек.", budget, staleTtl);
+        }
+    }
+
+    /**
+     * Режим кэша количества пользователей по значению параметра countCache. Неизвестное значение не прерывает
+     * запуск провайдера: кэш отключается (none)
+     */
+    private static UserCountCache.Mode countCacheMode(String value) {
+        try {
+            return UserCountCache.Mode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn(">>>> неизвестный режим кэша количества пользователей countCache = {}, используется none", value);
+            return UserCountCache.Mode.NONE;
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+        this.executor = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "user-storage-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.jobExecutor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "user-storage-jobs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::logStatistics,
+                STATISTICS_INTERVAL_MINUTES, STATISTICS_INTERVAL_MINUTES, TimeUnit.MINUTES);
+
+        // после миграции базы keycloak проверяем схему хранилища и строим фильтры Блума для всех компонентов
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(factory, this::checkSchema);
+                startIndexCheck();
+                startChangeWatcher();
+                List<String> componentIds = new ArrayList<>();
+                KeycloakModelUtils.runJobInTransaction(factory, session -> componentIds.addAll(
+                        getComponents(session).map(ComponentModel::getId).collect(Collectors.toList())));
+                componentIds.forEach(this::getBloomFilter);
+                startWarmup(componentIds);
+                rebuildSearchIndex();
+                if (countCache.isEnabled()) {
+                    executor.scheduleWithFixedDelay(this::refreshCount, 0,
+                            countCache.getRefreshIntervalMillis(), TimeUnit.MILLISECONDS);
+                }
+                if (roleCatalogue.isEnabled()) {
+                    executor.scheduleWithFixedDelay(this::refreshRoleCatalogue, 0,
+                            roleCatalogue.getRefreshIntervalMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (changeWatcher != null) {
+            changeWatcher.stop();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (jobExecutor != null) {
+            jobExecutor.shutdownNow();
+        }
+        userCache.clear();
+        pageCursors.clear();
+        searchResults.clear();
+        bloomFilters.clear();
+    }
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -31,4 +378,473 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
         return "VITOS User Storage Provider";
     }
 
+    public UserSnapshotCache getUserCache() {
+        return userCache;
+    }
+
+    public LookupCoalescer<UserSnapshot> getLookupCoalescer() {
+        return lookupCoalescer;
+    }
+
+    /**
+     * Индекс поиска пользователей в памяти узла для чтения страницы результатов (null, если индекс отключен
+     * или еще не построен). Индекс упорядочивает результаты не так, как база данных, поэтому просмотр страниц,
+     * начатый в базе данных до первой публикации индекса, должен в ней и продолжаться.
+     * Продолжение просмотра (firstResult > 0) обслуживается индексом только после того, как с момента первой
+     * публикации индекса прошло время жизни курсоров страниц (pageCursorTtl).
+     * @param firstResult сдвиг запрашиваемой страницы
+     * @return индекс поиска или null, если страницу нужно читать из базы данных
+     */
+    public UserSearchIndex getSearchIndex(int firstResult) {
+        UserSearchIndex index = searchIndex;
+        if (index == null || firstResult <= 0) {
+            return index;
+        }
+        return System.currentTimeMillis() - searchIndexPublishedAt >= pageCursors.getTtlMillis() ? index : null;
+    }
+
+    /**
+     * Применяет изменение к текущему индексу поиска. Если в это время строится новый индекс, изменение
+     * запоминается и повторяется в новом индексе перед заменой текущего.
+     * @param change изменение индекса (добавление, обновление или удаление пользователя)
+     */
+    public void updateSearchIndex(Consumer<UserSearchIndex> change) {
+        synchronized (searchIndexBuilds) {
+            UserSearchIndex index = searchIndex;
+            if (index != null) {
+                change.accept(index);
+            }
+            searchIndexBuilds.values().forEach(changes -> changes.add(change));
+        }
+    }
+
+    /**
+     * Строит новый индекс поиска в фоновом потоке чтением таблицы privfastsm.accounts и заменяет им текущий
+     * после построения. До замены запросы обслуживает прежний индекс (при первом построении - база данных).
+     * Изменения, сделанные во время построения (updateSearchIndex), применяются к прежнему индексу и запоминаются,
+     * а перед заменой повторяются в новом индексе, поэтому изменения, не видимые запросу чтения таблицы,
+     * не теряются.
+     */
+    private void rebuildSearchIndex() {
+        if (!searchIndexEnabled || jobExecutor == null) return;
+        jobExecutor.execute(() -> {
+            long started = System.currentTimeMillis();
+            UserSearchIndex index = new UserSearchIndex();
+            synchronized (searchIndexBuilds) {
+                searchIndexBuilds.put(index, new ArrayList<>());
+            }
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+                    try (Stream<Object[]> rows = em.createNamedQuery("getAllSearchFields", Object[].class)
+                            .setHint("org.hibernate.fetchSize", streamFetchSize)
+                            .setHint("org.hibernate.readOnly", true)
+                            .getResultStream()) {
+                        rows.forEach(row -> putSearchFields(index, row));
+                    }
+                });
+                int replayed;
+                synchronized (searchIndexBuilds) {
+                    List<Consumer<UserSearchIndex>> changes = searchIndexBuilds.remove(index);
+                    changes.forEach(change -> change.accept(index));
+                    replayed = changes.size();
+                    index.setReady(true);
+                    if (searchIndex == null) {
+                        searchIndexPublishedAt = System.currentTimeMillis();
+                    }
+                    searchIndex = index;
+                }
+                log.info(">>>> индекс поиска пользователей построен за {} мс (повторено изменений: {}): {}",
+                        System.currentTimeMillis() - started, replayed, index);
+            } catch (RuntimeException e) {
+                log.warn(">>>> ошибка построения индекса поиска пользователей", e);
+            } finally {
+                synchronized (searchIndexBuilds) {
+                    searchIndexBuilds.remove(index);
+                }
+            }
+        });
+    }
+
+    private static void putSearchFields(UserSearchIndex index, Object[] row) {
+        index.put((Long) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4],
+                (String) row[5], (String) row[6], (String) row[7]);
+    }
+
+    /**
+     * Запускает фоновый импорт ролей хранилища в рабочую область. Если импорт для рабочей области уже выполняется,
+     * новый не запускается. Если предыдущий импорт завершился ошибкой, новый продолжается с позиции,
+     * на которой он был прерван.
+     * @param realmId id рабочей области
+     * @return выполняемый или запущенный импорт, null - если фабрика еще не инициализирована
+     */
+    public synchronized RoleImportJob startRoleImport(String realmId) {
+        if (jobExecutor == null) return null;
+        RoleImportJob previous = roleImports.get(realmId);
+        if (previous != null && previous.isActive()) {
+            return previous;
+        }
+        long fromRoleId = previous != null && previous.getState() == RoleImportJob.State.FAILED
+                ? previous.getLastRoleId() : 0;
+        RoleImportJob job = new RoleImportJob(sessionFactory, realmId, roleImportChunkSize, fromRoleId);
+        roleImports.put(realmId, job);
+        jobExecutor.execute(job);
+        return job;
+    }
+
+    public RoleCatalogue getRoleCatalogue() {
+        return roleCatalogue;
+    }
+
+    /**
+     * Полностью перечитывает каталог ролей с правами (только в фоновом потоке фабрики)
+     */
+    private void refreshRoleCatalogue() {
+        long generation = roleCatalogue.generation();
+        try {
+            List<RoleSnapshot> roles = new ArrayList<>();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+                em.createNamedQuery("getAllRolesWithRights", UserRoleEntity.class)
+                        .setHint("org.hibernate.readOnly", true)
+                        .getResultList()
+                        .forEach(role -> roles.add(RoleSnapshot.of(role)));
+            });
+            if (!roleCatalogue.load(roles, generation)) {
+                log.debug(">>>> каталог ролей изменен во время загрузки, загрузка будет повторена");
+                executor.schedule(this::refreshRoleCatalogue, 1, TimeUnit.SECONDS);
+            }
+        } catch (RuntimeException e) {
+            log.warn(">>>> ошибка загрузки каталога ролей: {}", e.getMessage());
+        }
+    }
+
+    public SearchResultCache getSearchResults() {
+        return searchResults;
+    }
+
+    public UserCountCache getCountCache() {
+        return countCache;
+    }
+
+    /**
+     * Обновляет кэш количества пользователей (только в фоновом потоке фабрики)
+     */
+    private void refreshCount() {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+                String queryName = countCache.getMode() == UserCountCache.Mode.APPROXIMATE
+                        ? "estimateUserCount" : "getUserCount";
+                Object count = em.createNamedQuery(queryName).getSingleResult();
+                countCache.set(count == null ? -1 : ((Number) count).longValue());
+            });
+        } catch (RuntimeException e) {
+            log.warn(">>>> ошибка обновления количества пользователей: {}", e.getMessage());
+        }
+    }
+
+    public long getCountEstimateThreshold() {
+        return countEstimateThreshold;
+    }
+
+    /**
+     * Оценка количества пользователей pg_class.reltuples, общая для всех сессий узла. Статистика планировщика
+     * изменяется только после analyze или vacuum, поэтому оценка перечитывается не чаще одного раза
+     * в COUNT_ESTIMATE_TTL_MILLIS, а не при каждом подсчете количества пользователей.
+     * @param loader чтение оценки в сессии провайдера
+     * @return оценка количества строк таблицы privfastsm.accounts (-1, если статистика еще не собрана)
+     */
+    public long getCountEstimate(LongSupplier loader) {
+        long now = System.currentTimeMillis();
+        if (now - countEstimateAt >= COUNT_ESTIMATE_TTL_MILLIS) {
+            countEstimate = loader.getAsLong();
+            countEstimateAt = now;
+        }
+        return countEstimate;
+    }
+
+    public int getStreamFetchSize() {
+        return streamFetchSize;
+    }
+
+    public PageCursorCache getPageCursors() {
+        return pageCursors;
+    }
+
+    public boolean isTrigramSearch() {
+        return SEARCH_TRIGRAM.equals(searchMode);
+    }
+
+    public double getSearchMinScore() {
+        return searchMinScore;
+    }
+
+    public DegradedMode getDegradedMode() {
+        return degradedMode;
+    }
+
+    /**
+     * Асинхронно обновляет снимок пользователя в кэше (режим деградации). Время загрузки учитывается режимом
+     * деградации, поэтому обновления позволяют выключить режим после восстановления хранилища.
+     * Одновременно выполняется не более одного обновления одного пользователя.
+     * @param componentId id компонента провайдера
+     * @param accountId id пользователя
+     */
+    public void refreshAsync(String componentId, Long accountId) {
+        String key = componentId + "|" + accountId;
+        if (executor == null || !refreshing.add(key)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                        EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+                        long generation = userCache.generation();
+                        long started = System.nanoTime();
+                        UserEntity user = em.find(UserEntity.class, accountId);
+                        degradedMode.record(DegradedMode.BY_ID, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                        if (user != null) {
+                            userCache.put(componentId, UserSnapshot.of(user), generation);
+                        } else {
+                            userCache.invalidate(componentId, accountId);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    log.warn(">>>> ошибка обновления снимка пользователя id = {}: {}", accountId, e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    public boolean isLookupIgnoreCase() {
+        return lookupIgnoreCase;
+    }
+
+    /**
+     * Возвращает фильтр Блума компонента провайдера. При первом обращении фильтр создается и в фоновом режиме
+     * заполняется всеми login и email из таблицы privfastsm.accounts. До окончания заполнения фильтр не дает
+     * отрицательных ответов.
+     * <br>Фильтр используется только пока работает наблюдение за изменениями хранилища: без уведомлений login
+     * и email пользователей, добавленных в хранилище в обход провайдера, в фильтр не попадут, и такие
+     * пользователи будут отвергнуты фильтром.
+     * @param componentId id компонента провайдера
+     * @return фильтр Блума или null, если фильтр отключен в настройках или наблюдение за изменениями не запущено
+     */
+    public BloomFilter getBloomFilter(String componentId) {
+        if (!bloomEnabled || jobExecutor == null) return null;
+        if (changeWatcher == null || !changeWatcher.isRunning()) return null;
+        return bloomFilters.computeIfAbsent(componentId, id -> {
+            BloomFilter filter = new BloomFilter(bloomExpectedUsers * 2, bloomFalsePositiveRate);
+            jobExecutor.execute(() -> buildBloomFilter(id, filter));
+            return filter;
+        });
+    }
+
+    private void buildBloomFilter(String componentId, BloomFilter filter) {
+        long started = System.currentTimeMillis();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+                try (Stream<Object[]> rows = em.createNamedQuery("getAllLoginsAndEmails", Object[].class)
+                        .setHint("org.hibernate.fetchSize", streamFetchSize)
+                        .setHint("org.hibernate.readOnly", true)
+                        .getResultStream()) {
+                    rows.forEach(row -> {
+                        filter.put((String) row[0]);
+                        filter.put((String) row[1]);
+                    });
+                }
+            });
+            filter.setReady(true);
+            log.info(">>>> фильтр Блума компонента {} построен за {} мс: {}",
+                    componentId, System.currentTimeMillis() - started, filter);
+        } catch (RuntimeException e) {
+            bloomFilters.remove(componentId, filter);
+            log.warn(">>>> ошибка построения фильтра Блума компонента {}", componentId, e);
+        }
+    }
+
+    private void checkSchema(KeycloakSession session) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+
+        // параметры выделенного соединения по умолчанию совпадают с параметрами единицы хранения "user-store"
+        Map<String, Object> properties = em.getEntityManagerFactory().getProperties();
+        if (jdbcUrl == null) jdbcUrl = (String) properties.get("javax.persistence.jdbc.url");
+        if (jdbcUser == null) jdbcUser = (String) properties.get("javax.persistence.jdbc.user");
+        if (jdbcPassword == null) jdbcPassword = (String) properties.get("javax.persistence.jdbc.password");
+
+        UserStoreSchema schema = new UserStoreSchema(jdbcUrl, jdbcUser, jdbcPassword, provisionSchema);
+        if (searchIndexes || isTrigramSearch()) {
+            schema.ensureTrigramExtension();
+        }
+        if (isInvalidationEnabled()) {
+            schema.ensureChangeTriggers();
+        }
+    }
+
+    /**
+     * Проверяет индексы таблицы privfastsm.accounts в фоновом потоке. Недостающие индексы строятся
+     * без блокировки записи (CREATE INDEX CONCURRENTLY) через отдельное соединение, до окончания построения
+     * запросы выполняются без них.
+     */
+    private void startIndexCheck() {
+        jobExecutor.execute(() -> {
+            UserStoreIndexes indexes = new UserStoreIndexes(jdbcUrl, jdbcUser, jdbcPassword, provisionSchema);
+            if (lookupIgnoreCase) {
+                indexes.ensureLookupIndexes();
+            }
+            if (pageCursors.isEnabled()) {
+                indexes.ensurePagingIndexes();
+            }
+            if (attributeIndexes) {
+                indexes.ensureAttributeIndexes();
+            }
+            if (searchIndexes || isTrigramSearch()) {
+                indexes.ensureTrigramIndexes();
+            }
+        });
+    }
+
+    private void startWarmup(List<String> componentIds) {
+        if (!warmupEnabled || !userCache.isEnabled() || warmupLimit <= 0 || componentIds.isEmpty()) return;
+        int parallelism = (int) Math.floor(warmupPoolSize * warmupPoolShare);
+        warmup = new UserCacheWarmup(sessionFactory, userCache, componentIds,
+                warmupLimit, BATCH_SIZE, parallelism, warmupQuery);
+        jobExecutor.execute(warmup);
+        log.info(">>>> прогрев кэша пользователей запущен: до {} пользователей, соединений не более {}",
+                warmupLimit, Math.max(1, parallelism));
+    }
+
+    private boolean isInvalidationEnabled() {
+        return INVALIDATION_NOTIFY.equals(invalidationMode) || INVALIDATION_POLL.equals(invalidationMode);
+    }
+
+    private void startChangeWatcher() {
+        if (!isInvalidationEnabled()) return;
+        if (jdbcUrl == null) {
+            log.warn(">>>> не задан jdbc адрес хранилища, наблюдение за изменениями отключено");
+            return;
+        }
+        changeWatcher = new StoreChangeWatcher(jdbcUrl, jdbcUser, jdbcPassword,
+                INVALIDATION_NOTIFY.equals(invalidationMode), invalidationPollSeconds * 1000L, this);
+        changeWatcher.start();
+        log.info(">>>> наблюдение за изменениями хранилища запущено (режим {})", invalidationMode);
+    }
+
+    /*
+     * --------------------------------------------------------------------------------------------------------------
+     * StoreChangeListener
+     * Уведомления об изменениях в хранилище, сделанных другими узлами keycloak и внешними системами.
+     * Вызываются из потока StoreChangeWatcher.
+     * --------------------------------------------------------------------------------------------------------------
+     */
+
+    /**
+     * Сбрасывает снимки измененных пользователей, добавляет их новые login и email в фильтры Блума, чтобы
+     * пользователи, созданные в обход провайдера, не были отвергнуты фильтром, и обновляет индекс поиска
+     */
+    @Override
+    public void accountsChanged(Set<Long> accountIds) {
+        accountIds.forEach(userCache::invalidateAccount);
+        searchResults.clear();
+        pageCursors.clear();
+        if (bloomFilters.isEmpty() && !searchIndexEnabled) return;
+
+        List<Long> ids = new ArrayList<>(accountIds);
+        Set<Long> removed = new HashSet<>(accountIds);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                List<Object[]> rows = em.createNamedQuery("getSearchFieldsByIds", Object[].class)
+                        .setParameter("ids", ids.subList(from, Math.min(from + BATCH_SIZE, ids.size())))
+                        .getResultList();
+                rows.forEach(row -> {
+                    removed.remove((Long) row[0]);
+                    bloomFilters.values().forEach(filter -> {
+                        filter.put((String) row[1]);
+                        filter.put((String) row[2]);
+                    });
+                    if (searchIndexEnabled) updateSearchIndex(index -> putSearchFields(index, row));
+                });
+            }
+        });
+        if (searchIndexEnabled) removed.forEach(id -> updateSearchIndex(index -> index.remove(id)));
+    }
+
+    /**
+     * Перечитывает измененные роли и их права в каталог ролей, отсутствующие в хранилище роли удаляются из каталога
+     */
+    @Override
+    public void rolesChanged(Set<Long> roleIds) {
+        log.debug(">>>> изменены роли хранилища: {}", roleIds);
+        if (!roleCatalogue.isEnabled()) return;
+
+        List<Long> ids = new ArrayList<>(roleIds);
+        List<RoleSnapshot> found = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                em.createNamedQuery("getRolesWithRightsByIds", UserRoleEntity.class)
+                        .setParameter("ids", ids.subList(from, Math.min(from + BATCH_SIZE, ids.size())))
+                        .setHint("org.hibernate.readOnly", true)
+                        .getResultList()
+                        .forEach(role -> found.add(RoleSnapshot.of(role)));
+            }
+        });
+        roleCatalogue.update(roleIds, found);
+    }
+
+    /**
+     * Уведомления могли быть потеряны: очищает кэш пользователей, фильтры Блума, индекс поиска и каталог ролей
+     * будут построены заново
+     */
+    @Override
+    public void reset() {
+        log.info(">>>> сброс кэша пользователей и фильтров Блума после потери уведомлений");
+        userCache.clear();
+        searchResults.clear();
+        pageCursors.clear();
+        bloomFilters.clear();
+        rebuildSearchIndex();
+        if (roleCatalogue.isEnabled() && executor != null) {
+            executor.execute(this::refreshRoleCatalogue);
+        }
+    }
+
+    private Stream<ComponentModel> getComponents(KeycloakSession session) {
+        return session.realms().getRealmsStream()
+                .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                .filter(component -> PROVIDER_ID.equals(component.getProviderId()));
+    }
+
+    private void logStatistics() {
+        log.info(">>>> кэш пользователей: {} записей", userCache.size());
+        log.info(">>>> загрузки пользователей: {}", lookupCoalescer);
+        if (countCache.isEnabled()) {
+            log.info(">>>> количество пользователей: {}", countCache);
+        }
+        if (searchResults.isEnabled()) {
+            log.info(">>>> кэш результатов поиска: {}", searchResults);
+        }
+        if (roleCatalogue.isEnabled()) {
+            log.info(">>>> каталог ролей: {}", roleCatalogue);
+        }
+        roleImports.forEach((realmId, job) -> log.info(">>>> импорт ролей в realm {}: {}", realmId, job));
+        if (degradedMode.isEnabled()) {
+            log.info(">>>> режим деградации: {}", degradedMode);
+        }
+        if (warmup != null) {
+            log.info(">>>> прогрев кэша пользователей: {}", warmup);
+        }
+        if (searchIndex != null) {
+            log.info(">>>> индекс поиска пользователей: {}", searchIndex);
+        }
+        bloomFilters.forEach((componentId, filter) ->
+                log.info(">>>> фильтр Блума компонента {}: {}", componentId, filter));
+    }
+
 }
@@ -0,0 +1,165 @@
+package org.example.federation.users;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.model.RoleSnapshot;
+import org.example.federation.users.model.UserRoleEntity;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.persistence.EntityManager;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Фоновый импорт всех ролей хранилища (privfastsm.userroles) с правами в рабочую область (realm).
+ * Сначала одним проходом читаются названия ролей, уже существующих в рабочей области, и id ролей хранилища
+ * в порядке возрастания. Затем роли обрабатываются порциями: каждая порция читается одним запросом вместе
+ * с правами и добавляется в рабочую область в отдельной транзакции. Права роли записываются в атрибуты
+ * одним пакетом на роль (повторяющиеся имена прав схлопываются, как и при поштучной записи).
+ * <br>После каждой завершенной порции запоминается id последней роли. Если импорт прерван ошибкой,
+ * следующий импорт для той же рабочей области продолжается с этой позиции.
+ */
+@Slf4j
+public class RoleImportJob implements Runnable {
+
+    public enum State { PENDING, RUNNING, DONE, FAILED }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final int chunkSize;
+    private final long fromRoleId;
+
+    private volatile State state = State.PENDING;
+    private volatile long lastRoleId;
+    private volatile int total;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    /**
+     * @param sessionFactory фабрика сессий keycloak
+     * @param realmId id рабочей области, в которую импортируются роли
+     * @param chunkSize количество ролей в одной транзакции
+     * @param fromRoleId id роли, после которой продолжается импорт (0 - с начала)
+     */
+    public RoleImportJob(KeycloakSessionFactory sessionFactory, String realmId, int chunkSize, long fromRoleId) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.fromRoleId = fromRoleId;
+        this.lastRoleId = fromRoleId;
+    }
+
+    @Override
+    public void run() {
+        state = State.RUNNING;
+        startedAt = System.currentTimeMillis();
+        log.info(">>>> импорт ролей хранилища в realm {} начат (после роли id = {})", realmId, fromRoleId);
+        try {
+            Set<String> existing = new HashSet<>();
+            List<Long> ids = new ArrayList<>();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = getRealm(session.realms().getRealm(realmId));
+                existing.addAll(session.roles().getRealmRolesStream(realm)
+                        .map(RoleModel::getName).collect(Collectors.toSet()));
+                EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+                ids.addAll(em.createNamedQuery("getRoleIdsAfter", Long.class)
+                        .setParameter("id", fromRoleId)
+                        .getResultList());
+            });
+            total = ids.size();
+
+            for (int from = 0; from < ids.size(); from += chunkSize) {
+                List<Long> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+                importChunk(chunk, existing);
+                lastRoleId = chunk.get(chunk.size() - 1);
+                processed.addAndGet(chunk.size());
+                log.info(">>>> импорт ролей в realm {}: {}", realmId, this);
+            }
+            state = State.DONE;
+        } catch (RuntimeException e) {
+            state = State.FAILED;
+            log.warn(">>>> ошибка импорта ролей в realm {} (будет продолжен после роли id = {})", realmId, lastRoleId, e);
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            log.info(">>>> импорт ролей в realm {} завершен: {}", realmId, this);
+        }
+    }
+
+    private void importChunk(List<Long> chunk, Set<String> existing) {
+        Set<String> added = new HashSet<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = getRealm(session.realms().getRealm(realmId));
+            EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+            List<UserRoleEntity> roles = em.createNamedQuery("getRolesWithRightsByIds", UserRoleEntity.class)
+                    .setParameter("ids", chunk)
+                    .setHint("org.hibernate.readOnly", true)
+                    .getResultList();
+            for (UserRoleEntity userRole : roles) {
+                String name = userRole.getName();
+                if (name == null || existing.contains(name) || !added.add(name)) continue;
+                RoleModel realmRole = session.roles().addRealmRole(realm, name);
+                realmRole.setDescription(userRole.getDescription());
+                RoleStorage.rightsAttributes(RoleSnapshot.of(userRole).getRights()).forEach(realmRole::setSingleAttribute);
+            }
+        });
+        // названия запоминаются только после фиксации транзакции порции
+        existing.addAll(added);
+        created.addAndGet(added.size());
+    }
+
+    private RealmModel getRealm(RealmModel realm) {
+        if (realm == null) {
+            throw new ModelException("Рабочая область id = " + realmId + " не найдена");
+        }
+        return realm;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true, если импорт еще не завершен (ожидает запуска или выполняется)
+     */
+    public boolean isActive() {
+        return state == State.PENDING || state == State.RUNNING;
+    }
+
+    /**
+     * @return id последней роли, порция которой успешно импортирована (позиция продолжения импорта)
+     */
+    public long getLastRoleId() {
+        return lastRoleId;
+    }
+
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    public int getCreated() {
+        return created.get();
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public long getDurationMillis() {
+        if (startedAt == 0) return 0;
+        return (finishedAt == 0 ? System.currentTimeMillis() : finishedAt) - startedAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("state = %s, processed = %d of %d, created = %d, last role id = %d, duration = %d ms",
+                state, getProcessed(), total, getCreated(), lastRoleId, getDurationMillis());
+    }
+
+}
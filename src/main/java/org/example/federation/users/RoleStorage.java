@@ -2,6 +2,8 @@ package org.example.federation.users;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.cache.RoleCatalogue;
+import org.example.federation.users.model.RoleSnapshot;
 import org.example.federation.users.model.UserRoleEntity;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
@@ -20,10 +22,20 @@ public class RoleStorage {
     protected RealmModel realm;
     protected ComponentModel model;
     protected KeycloakSession session;
+    protected RoleCatalogue catalogue;
 
     public RoleStorage(KeycloakSession session, ComponentModel model) {
+        this(session, model, null);
+    }
+
+    /**
+     * @param catalogue каталог ролей узла, из которого выполняется поиск ролей по названию без обращения
+     *                  к jdbc хранилищу (null - поиск всегда выполняется в хранилище)
+     */
+    public RoleStorage(KeycloakSession session, ComponentModel model, RoleCatalogue catalogue) {
         this.model = model;
         this.session = session;
+        this.catalogue = catalogue;
         this.realm = session.getContext().getRealm();
         this.em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
     }
@@ -63,6 +75,8 @@ public class RoleStorage {
 
     /**
      * Загружает из внешнего хранилища запись точно по названию роли (чувствителен к регистру).
+     * Запись всегда читается из хранилища, поэтому метод используется там, где сущность изменяется
+     * или удаляется. Для назначения роли пользователю сущность не нужна (см. getRoleReference()).
      * @param name название роли, которую необходимо найти и загрузить (в точности с регистром букв)
      * @return экземпляр класса UserRoleEntity в случае успешной загрузки, или null если роль не найдена
      */
@@ -80,22 +94,40 @@ public class RoleStorage {
     }
 
     /**
-     * Добавление всех имеющихся ролей в рабочую область (realm).
-     * Метод вызывает процедуру findAllRoles() для считывания всех ролей из внешнего jdbc хранилища.
-     * Затем передаёт эту коллекцию в процедуру AddRolesToRealm(), которая последовательно проверяет наличие
-     * каждой роли в рабочей области, и добавляет роль только если там ее нет.
+     * Возвращает ссылку на роль для записи связи пользователя с ролью (таблица privfastsm.account_role).
+     * Если роль есть в каталоге ролей узла, возвращается em.getReference() по id из каталога: запись роли
+     * не читается, для связи достаточно id. Роли, которых нет в каталоге, ищутся в хранилище по названию.
+     * @param name название роли (в точности с регистром букв)
+     * @return ссылка на сущность роли или null, если роль не найдена
      */
-    public void addAllRoles() {
-        addAllRoleIntoRealm(findAllRoles(-1, -1));
+    public UserRoleEntity getRoleReference(@NonNull String name) {
+
+        if (catalogue != null && catalogue.isLoaded()) {
+            RoleSnapshot snapshot = catalogue.get(name);
+            if (snapshot != null) {
+                return em.getReference(UserRoleEntity.class, snapshot.getRoleId());
+            }
+        }
+        return findRoleByName(name);
     }
 
     /**
      * Метод проверяет наличие роли в рабочей области по названию. Если такой роли в рабочей области нет,
      * создается роль, добавляется описание и заполняется список атрибутов, если они заданы для роли.
-     * @param userRole сущность роли из jdbc хранилища
+     * @param userRole сущность роли из jdbc хранилища (список прав роли должен быть загружен)
      * @return модель роли из рабочей области
      */
     public RoleModel addRoleIntoRealm(UserRoleEntity userRole) {
+        return addRoleIntoRealm(RoleSnapshot.of(userRole));
+    }
+
+    /**
+     * Метод проверяет наличие роли в рабочей области по названию. Если такой роли в рабочей области нет,
+     * роль создается по снимку роли (например, из каталога ролей) без обращения к jdbc хранилищу.
+     * @param userRole снимок роли jdbc хранилища
+     * @return модель роли из рабочей области
+     */
+    public RoleModel addRoleIntoRealm(RoleSnapshot userRole) {
 
         // пробуем получить роль из области
         String userRoleName = userRole.getName();
@@ -109,36 +141,19 @@ public class RoleStorage {
             realmRole.setDescription(userRole.getDescription());
 
             // добавляем права (таблица rights) если они назначены для роли
-            if (!userRole.getRightsList().isEmpty())
-            {
-                RoleModel role = realmRole;
-                userRole.getRightsList().forEach(right ->
-                {
-                    // поля атрибутов ролей keycloak имеют ограничения = varchar255 :: нормализуем
-                    String key = right.getKeyName();
-                    String value = right.getValueName();
-                    if (key != null && key.length() > 255) {
-                        key = key.substring(0, 255);
-                    }
-                    if (value != null && value.length() > 255) {
-                        value = value.substring(0, 255);
-                    }
-                    role.setSingleAttribute(key, value);
-                });
-            }
+            rightsAttributes(userRole.getRights()).forEach(realmRole::setSingleAttribute);
         }
         return realmRole;
     }
 
     /**
-     * Добавляет в рабочую область (realm) список ролей с описаниями и аттрибутами (если они заданы).
-     * Метод предварительно проверяет наличие в realm каждой отдельной роли. Отсутствующие роли добавляются.
-     * @param entitySet список ролей (экземпляров класса UserRoleEntity) для загрузки в рабочую область (realm)
+     * Преобразует права роли (таблица rights) в атрибуты роли keycloak. Поля атрибутов ролей keycloak имеют
+     * ограничения = varchar255, поэтому имена и значения обрезаются. Для повторяющихся имен остается
+     * значение последнего права.
+     * @param rights права роли из снимка роли jdbc хранилища
+     * @return карта атрибутов роли (имя -> значение) в порядке прав
      */
-    public void addAllRoleIntoRealm(Set<UserRoleEntity> entitySet) {
-        entitySet.forEach(this::addRoleIntoRealm);
-    }
-
+    public static Map<String, String> rightsAttributes(Collection<RoleSnapshot.Right> rights) {
         /**
      * Сохраняет роль во внешнем хранилище
      * @param role модель роли из рабочей области
@@ -156,6 +171,9 @@ public class RoleStorage {
         em.getTransaction().begin();
         em.persist(entity);
         em.getTransaction().commit();
+        if (catalogue != null) {
+            catalogue.put(RoleSnapshot.of(entity));
+        }
 
         log.info(">>>> SAVE ROLE >>>> роль: \"{}\" добавлена в хранилище", role.getName());
         return entity;
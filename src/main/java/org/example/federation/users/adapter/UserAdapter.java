@@ -1,15 +1,18 @@
 package org.example.federation.users.adapter;
 
 import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.CustomUserStorageProvider;
 import org.example.federation.users.RoleStorage;
 import org.example.federation.users.model.UserEntity;
 import org.example.federation.users.model.UserRoleEntity;
+import org.example.federation.users.model.UserSnapshot;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.LegacyUserCredentialManager;
 import org.keycloak.models.*;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
 
 import java.sql.Timestamp;
 import java.util.*;
@@ -29,19 +32,77 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
     private static final String ATTRIBUTE_POSITION = "position"; //"должность";
     private static final String ATTRIBUTE_IP_ADDRESS = "ip_address"; //"IP адрес";
     private static final String ATTRIBUTE_BANNER_VIEWED = "banner_viewed"; //"показ баннера безопасности";
+    // федеративный атрибут: отпечаток ролей хранилища, с которыми последний раз сопоставлялись роли пользователя
+    private static final String ATTRIBUTE_ROLES_FINGERPRINT = "storage_roles_fingerprint";
 
     protected UserEntity entity;
+    protected UserSnapshot snapshot;
     protected String keycloakId;
     protected ComponentModel model;
     protected KeycloakSession session;
+    protected CustomUserStorageProvider provider;
+    private boolean rolesLoaded;
 
-    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, UserEntity entity) {
+    /**
+     * Адаптер строится из неизменяемого снимка записи пользователя. Управляемая сущность UserEntity загружается
+     * из jdbc хранилища только тогда, когда она действительно нужна (изменение данных или работа с ролями).
+     * @param provider провайдер хранилища, в рамках сессии которого создается адаптер
+     * @param realm рабочая область
+     * @param snapshot снимок записи пользователя
+     */
+    public UserAdapter(CustomUserStorageProvider provider, RealmModel realm, UserSnapshot snapshot) {
+
+        super(provider.getSession(), realm, provider.getModel());
+        this.provider = provider;
+        this.session = provider.getSession();
+        this.model = provider.getModel();
+        this.snapshot = snapshot;
+        keycloakId = StorageId.keycloakId(model, String.valueOf(snapshot.getAccountId()));
+    }
+
+    /**
+     * Возвращает управляемую сущность пользователя, при первом обращении загружает её из jdbc хранилища
+     * @return экземпляр класса UserEntity текущего пользователя
+     */
+    public UserEntity getEntity() {
+        if (entity == null) {
+            entity = provider.getEntityManager().find(UserEntity.class, snapshot.getAccountId());
+            if (entity == null) {
+                throw new ModelException("Пользователь id = " + snapshot.getAccountId() + " не найден в хранилище");
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Возвращает управляемую сущность пользователя с загруженными ролями и правами ролей.
+     * Роли и права читаются одним запросом (join fetch), а не отдельным запросом для списка ролей
+     * и для списка прав каждой роли.
+     * @return экземпляр класса UserEntity текущего пользователя с инициализированным списком ролей
+     */
+    public UserEntity getEntityWithRoles() {
+        if (entity == null || !rolesLoaded) {
+            List<UserEntity> found = provider.getEntityManager()
+                    .createNamedQuery("getUserWithRolesById", UserEntity.class)
+                    .setParameter("id", snapshot.getAccountId())
+                    .getResultList();
+            if (found.isEmpty()) {
+                throw new ModelException("Пользователь id = " + snapshot.getAccountId() + " не найден в хранилище");
+            }
+            entity = found.get(0);
+            rolesLoaded = true;
+        }
+        return entity;
+    }
 
-        super(session, realm, model);
-        this.session = session;
-        this.entity = entity;
-        this.model = model;
-        keycloakId = StorageId.keycloakId(model, String.valueOf(entity.getAccountId()));
+    /**
+     * Обновляет снимок после изменения сущности и сообщает провайдеру об изменении данных пользователя,
+     * чтобы тот сбросил устаревшие записи кэша.
+     */
+    protected void updated() {
+        UserSnapshot previous = snapshot;
+        snapshot = UserSnapshot.of(entity);
+        provider.userUpdated(previous, snapshot);
     }
 
     @Override
@@ -50,51 +111,56 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
     }
 
     public String getPassword() {
-        return entity.getPassword();
+        return snapshot.getPassword();
     }
 
     public void setPassword(String password) {
-        entity.setPassword(password);
+        getEntity().setPassword(password);
+        updated();
     }
 
     @Override
     public String getUsername() {
-        return entity.getUsername();
+        return snapshot.getUsername();
     }
 
     @Override
     public void setUsername(String username) {
-        entity.setUsername(username);
+        getEntity().setUsername(username);
+        updated();
     }
 
     @Override
     public String getEmail() {
-        return entity.getEmail();
+        return snapshot.getEmail();
     }
 
     @Override
     public void setEmail(String email) {
-        entity.setEmail(email);
+        getEntity().setEmail(email);
+        updated();
     }
 
     @Override
     public String getFirstName() {
-        return entity.getFirstName();
+        return snapshot.getFirstName();
     }
 
     @Override
     public void setFirstName(String firstName) {
-        entity.setFirstName(firstName);
+        getEntity().setFirstName(firstName);
+        updated();
     }
 
     @Override
     public String getLastName() {
-        return entity.getLastName();
+        return snapshot.getLastName();
     }
 
     @Override
     public void setLastName(String lastName) {
-        entity.setLastName(lastName);
+        getEntity().setLastName(lastName);
+        updated();
     }
 
     @Override
@@ -104,16 +170,17 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
 
     @Override
     public boolean isEnabled() {
-        return entity.getStatus().equals(ENABLED_TRUE);
+        return ENABLED_TRUE.equals(snapshot.getStatus());
     }
 
     @Override
     public void setEnabled(boolean enabled) {
         if (enabled) {
-            entity.setStatus(ENABLED_TRUE);
+            getEntity().setStatus(ENABLED_TRUE);
         } else {
-            entity.setStatus(ENABLED_FALSE);
+            getEntity().setStatus(ENABLED_FALSE);
         }
+        updated();
         super.setEnabled(enabled);
     }
 
@@ -129,20 +196,23 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
 
     @Override
     public Long getCreatedTimestamp() {
-        Long timestamp = entity.getCreated();
+        Long timestamp = snapshot.getCreated();
         if (timestamp == null) {
-            entity.setCreated(System.currentTimeMillis());
+            getEntity().setCreated(System.currentTimeMillis());
+            updated();
         }
-        return entity.getCreated();
+        return snapshot.getCreated();
     }
 
     @Override
     public void setCreatedTimestamp(Long timestamp) {
-        entity.setCreated(Objects.requireNonNullElseGet(timestamp, System::currentTimeMillis));
+        getEntity().setCreated(Objects.requireNonNullElseGet(timestamp, System::currentTimeMillis));
+        updated();
     }
 
     public void setPasswordChangeDate(Timestamp now) {
-        entity.setPasswordChangeDate(now);
+        getEntity().setPasswordChangeDate(now);
+        updated();
     }
 
     /**
@@ -154,15 +224,17 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
      */
     public boolean isCustomAttributeMissedSetup(String name, String value) {
         switch (name) {
-            case ATTRIBUTE_PHONE: entity.setPhone(value); return false;
-            case ATTRIBUTE_MIDDLE_NAME: entity.setMiddleName(value); return false;
-            case ATTRIBUTE_DEPARTMENT: entity.setDepartment(value); return false;
-            case ATTRIBUTE_POSITION: entity.setPosition(value); return false;
-            case ATTRIBUTE_IP_ADDRESS: entity.setIpAddress(value); return false;
-            case ATTRIBUTE_BANNER_VIEWED: entity.setBannerViewed(Boolean.parseBoolean(value)); return false;
+            case ATTRIBUTE_PHONE: getEntity().setPhone(value); break;
+            case ATTRIBUTE_MIDDLE_NAME: getEntity().setMiddleName(value); break;
+            case ATTRIBUTE_DEPARTMENT: getEntity().setDepartment(value); break;
+            case ATTRIBUTE_POSITION: getEntity().setPosition(value); break;
+            case ATTRIBUTE_IP_ADDRESS: getEntity().setIpAddress(value); break;
+            case ATTRIBUTE_BANNER_VIEWED: getEntity().setBannerViewed(Boolean.parseBoolean(value)); break;
             default:
                 return true;
         }
+        updated();
+        return false;
     }
 
     /**
@@ -202,9 +274,9 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
 
         if (values.isEmpty()) return;
         switch (name) {
-            case UserModel.LAST_NAME: entity.setLastName(values.get(0)); break;
-            case UserModel.FIRST_NAME: entity.setFirstName(values.get(0)); break;
-            case UserModel.EMAIL: entity.setEmail(values.get(0)); break;
+            case UserModel.LAST_NAME: setLastName(values.get(0)); break;
+            case UserModel.FIRST_NAME: setFirstName(values.get(0)); break;
+            case UserModel.EMAIL: setEmail(values.get(0)); break;
             default:
                 if (isCustomAttributeMissedSetup(name, values.get(0))) {
                     setSingleAttribute(name, values.get(0));  
@@ -223,12 +295,12 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
     public String getFirstAttribute(String name) {
 
         switch (name) {
-            case ATTRIBUTE_PHONE: return entity.getPhone();
-            case ATTRIBUTE_MIDDLE_NAME: return entity.getMiddleName();
-            case ATTRIBUTE_DEPARTMENT: return entity.getDepartment();
-            case ATTRIBUTE_POSITION: return entity.getPosition();
-            case ATTRIBUTE_IP_ADDRESS: return entity.getIpAddress();
-            case ATTRIBUTE_BANNER_VIEWED: return String.valueOf(entity.isBannerViewed());
+            case ATTRIBUTE_PHONE: return snapshot.getPhone();
+            case ATTRIBUTE_MIDDLE_NAME: return snapshot.getMiddleName();
+            case ATTRIBUTE_DEPARTMENT: return snapshot.getDepartment();
+            case ATTRIBUTE_POSITION: return snapshot.getPosition();
+            case ATTRIBUTE_IP_ADDRESS: return snapshot.getIpAddress();
+            case ATTRIBUTE_BANNER_VIEWED: return String.valueOf(snapshot.isBannerViewed());
             default:
                 return super.getFirstAttribute(name);
         }
@@ -247,18 +319,18 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
         MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
 
         // Добавляем стандартные атрибуты пользовательской модели Keycloak
-        attributes.add(UserModel.USERNAME, entity.getUsername());
-        attributes.add(UserModel.FIRST_NAME, entity.getFirstName());
-        attributes.add(UserModel.LAST_NAME, entity.getLastName());
-        attributes.add(UserModel.EMAIL, entity.getEmail());
+        attributes.add(UserModel.USERNAME, snapshot.getUsername());
+        attributes.add(UserModel.FIRST_NAME, snapshot.getFirstName());
+        attributes.add(UserModel.LAST_NAME, snapshot.getLastName());
+        attributes.add(UserModel.EMAIL, snapshot.getEmail());
 
         // Добавляем кастомные атрибуты к пользовательской модели Keycloak
-        attributes.add(ATTRIBUTE_PHONE, entity.getPhone());
-        attributes.add(ATTRIBUTE_MIDDLE_NAME, entity.getMiddleName());
-        attributes.add(ATTRIBUTE_DEPARTMENT, entity.getDepartment());
-        attributes.add(ATTRIBUTE_POSITION, entity.getPosition());
-        attributes.add(ATTRIBUTE_IP_ADDRESS, entity.getIpAddress());
-        attributes.add(ATTRIBUTE_BANNER_VIEWED, String.valueOf(entity.isBannerViewed()));
+        attributes.add(ATTRIBUTE_PHONE, snapshot.getPhone());
+        attributes.add(ATTRIBUTE_MIDDLE_NAME, snapshot.getMiddleName());
+        attributes.add(ATTRIBUTE_DEPARTMENT, snapshot.getDepartment());
+        attributes.add(ATTRIBUTE_POSITION, snapshot.getPosition());
+        attributes.add(ATTRIBUTE_IP_ADDRESS, snapshot.getIpAddress());
+        attributes.add(ATTRIBUTE_BANNER_VIEWED, String.valueOf(snapshot.isBannerViewed()));
 
         return attributes;
     }
@@ -316,23 +388,8 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
 
         // здесь начинается кастомный метод сопоставления списка ролей хранилища и списка ролей keycloak
         // ---------------------------------------------------------------------------------------------
-        log.info(">>>> getRoleMappings() :: проверка сопоставление ролей для: \"{}\"", entity.getUsername());
-        for (UserRoleEntity userRole : entity.getRoleList())
-        {
-            // проверяем наличие роли в рабочей области, добавляем если нет
-            RoleModel realmRole = new RoleStorage(session, model).addRoleIntoRealm(userRole);
-
-            // проверяем наличие сопоставления роли для пользователя (загружены из getFederatedRoleMappings())
-            Optional<RoleModel> optional = set.stream()
-                    .filter(realm_role -> realm_role.getName().equals(userRole.getName())).findFirst();
-
-            // если сопоставления нет, добавляем роль для пользователя
-            if (optional.isEmpty()) {
-                log.info(">>>>> getRoleMappings() :: роль \"{}\" добавлена в realm для: \"{}\") ", userRole.getName(), entity.getUsername());
-                grantRole(realmRole);
-                set.add(realmRole);
-            }
-        }
+        log.info(">>>> getRoleMappings() :: проверка сопоставление ролей для: \"{}\"", snapshot.getUsername());
+        reconcileRoleMappings(set);
         // ------------------------------------------------------------------------------------------------
         // здесь заканчивается кастомный метод сопоставления списка ролей хранилища и списка ролей keycloak
 
@@ -344,6 +401,89 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
         return set;
     }
 
+    /**
+     * Сопоставляет роли пользователя из jdbc хранилища с ролями области, уже назначенными ему в федеративном
+     * хранилище. Назначенные роли области индексируются по названию, поэтому каждая роль хранилища проверяется
+     * за O(1). Недостающие роли добавляются в рабочую область (если их там нет) и назначаются пользователю
+     * одним пакетом: записи сопоставлений добавляются в контекст хранения keycloak и записываются в базу
+     * одним сбросом при завершении транзакции. В jdbc хранилище эти роли уже назначены пользователю,
+     * поэтому повторный поиск ролей и запись связей не нужны.
+     * <br>Рядом с сопоставлениями в федеративном хранилище сохраняется отпечаток набора id ролей пользователя
+     * в jdbc хранилище (см. rolesFingerprint()). Если набор ролей с последнего сопоставления не изменился,
+     * сопоставление не выполняется: читаются только id ролей пользователя, без ролей, прав и ролей области.
+     * @param set назначенные роли пользователя (из getFederatedRoleMappings()), дополняется назначенными ролями
+     */
+    protected void reconcileRoleMappings(Set<RoleModel> set) {
+
+        UserFederatedStorageProvider federatedStorage = getFederatedStorage();
+        String fingerprint = rolesFingerprint(getStorageRoleIds());
+        String previous = federatedStorage.getAttributes(realm, getId()).getFirst(ATTRIBUTE_ROLES_FINGERPRINT);
+        if (fingerprint.equals(previous)) {
+            log.debug(">>>>> getRoleMappings() :: роли хранилища не изменились для: \"{}\"", snapshot.getUsername());
+            return;
+        }
+
+        RoleStorage roleStorage = provider.getRoleStorage();
+        List<RoleModel> missing = new ArrayList<>();
+        for (UserRoleEntity userRole : unmappedRoles(set, getEntityWithRoles().getRoleList())) {
+            // проверяем наличие роли в рабочей области, добавляем если нет
+            missing.add(roleStorage.addRoleIntoRealm(userRole));
+        }
+        if (!missing.isEmpty()) {
+            missing.forEach(role -> federatedStorage.grantRole(realm, getId(), role));
+            set.addAll(missing);
+            log.info(">>>>> getRoleMappings() :: {} ролей добавлено в сопоставление для: \"{}\": {}", missing.size(),
+                    snapshot.getUsername(), missing.stream().map(RoleModel::getName).collect(Collectors.toList()));
+        }
+        federatedStorage.setSingleAttribute(realm, getId(), ATTRIBUTE_ROLES_FINGERPRINT, fingerprint);
+    }
+
+    /**
+     * Роли хранилища, которые не сопоставлены пользователю: назначенные роли области индексируются по названию,
+     * поэтому каждая роль хранилища проверяется за O(1). Роли клиентов не считаются сопоставлением роли
+     * хранилища, роли хранилища с повторяющимся названием возвращаются один раз.
+     * @param mappings назначенные роли пользователя
+     * @param storageRoles роли пользователя в jdbc хранилище
+     * @return роли хранилища без сопоставления в порядке storageRoles
+     */
+    static List<UserRoleEntity> unmappedRoles(Collection<RoleModel> mappings, Collection<UserRoleEntity> storageRoles) {
+        Set<String> mapped = new HashSet<>();
+        mappings.stream().filter(role -> !role.isClientRole()).forEach(role -> mapped.add(role.getName()));
+        return storageRoles.stream()
+                .filter(role -> mapped.add(role.getName()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Возвращает id ролей пользователя в jdbc хранилище: из загруженного списка ролей, если он уже загружен,
+     * иначе запросом только к таблице связей (без чтения ролей и прав)
+     */
+    protected List<Long> getStorageRoleIds() {
+        if (entity != null && rolesLoaded) {
+            return entity.getRoleList().stream().map(UserRoleEntity::getRoleId).collect(Collectors.toList());
+        }
+        return provider.getEntityManager().createNamedQuery("getUserRoleIds", Long.class)
+                .setParameter("id", snapshot.getAccountId())
+                .getResultList();
+    }
+
+    /**
+     * Отпечаток набора ролей: количество ролей и 64-битный хэш FNV-1a отсортированных id ролей
+     * @param roleIds id ролей пользователя в jdbc хранилище (в любом порядке)
+     * @return строка вида "количество:хэш"
+     */
+    static String rolesFingerprint(Collection<Long> roleIds) {
+        long[] ids = roleIds.stream().mapToLong(Long::longValue).sorted().toArray();
+        long hash = 0xcbf29ce484222325L;
+        for (long id : ids) {
+            for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+                hash ^= (id >>> shift) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return ids.length + ":" + Long.toHexString(hash);
+    }
+
     /**
      * Возвращает поток ролей области, которые непосредственно установлены для этого объекта.
      * <br>По сути выполняется<br>
@@ -386,11 +526,11 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
     @Override
     public void deleteRoleMapping(RoleModel role) {
 
-        Optional<UserRoleEntity> optional = entity.getRoleList().stream()
+        Optional<UserRoleEntity> optional = getEntityWithRoles().getRoleList().stream()
                 .filter(r-> r.getName().equals(role.getName())).findFirst();
 
-        optional.ifPresent(userRole -> entity.removeUserRole(userRole));
-        log.info(">>>> сопоставление роли \"{}\" удалено (пользователь: {})", role.getName(), entity.getUsername());
+        optional.ifPresent(userRole -> getEntity().removeUserRole(userRole));
+        log.info(">>>> сопоставление роли \"{}\" удалено (пользователь: {})", role.getName(), snapshot.getUsername());
         super.deleteRoleMapping(role);
     }
 
@@ -399,19 +539,20 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage
      * хранилище роли с подобным названием. Если аналогичная роль будет найдена во внешнем хранилище, она добавляется
      * в отдельный список сопоставлений (таблица privfastsm.account_role). Если подобной роли не существует во внешнем
      * хранилище, создаем эту роль в там. После всего этого назначаем роль пользователю.
+     * Для роли из каталога ролей узла запись роли не читается: связь записывается по ссылке на id роли.
      * @param role модель роли которую нужно назначить текущему пользователю
      */
     @Override
     public void grantRole(RoleModel role) {
 
-        RoleStorage roleStorage = new RoleStorage(session, model);
-        UserRoleEntity userRoleEntity = roleStorage.findRoleByName(role.getName());
+        RoleStorage roleStorage = provider.getRoleStorage();
+        UserRoleEntity userRoleEntity = roleStorage.getRoleReference(role.getName());
 
         if (userRoleEntity == null) {
             userRoleEntity = roleStorage.saveRole(role);
         }
-        log.info(">>>> GRANT ROLE >>>> сопоставление роли \"{}\" (для пользователя: {})", role.getName(), entity.getUsername());
-        entity.addUserRole(userRoleEntity);
+        log.info(">>>> GRANT ROLE >>>> сопоставление роли \"{}\" (для пользователя: {})", role.getName(), snapshot.getUsername());
+        getEntity().addUserRoleReference(userRoleEntity);
         super.grantRole(role);
     }
 
@@ -0,0 +1,99 @@
+package org.example.federation.users.adapter;
+
+import org.example.federation.users.model.UserSnapshot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Карта идентичности адаптеров пользователей в пределах одной сессии keycloak (одного экземпляра провайдера).
+ * Повторный поиск пользователя по id, login или email в течение сессии возвращает тот же экземпляр UserAdapter,
+ * поэтому управляемая сущность UserEntity остается единственной изменяемой копией данных пользователя.
+ * <br>Если два пользователя сессии дают один и тот же ключ login или email, ключ удаляется из карты и больше
+ * не используется: поиск по такому ключу выполняется в хранилище, которое сообщит о неоднозначности.
+ * <br>В режиме регистронезависимого поиска ключи login и email не ведутся, карта ищет только по id: загруженный
+ * пользователь не подтверждает, что в хранилище нет другого пользователя со значением, которое отличается только
+ * регистром. Поиск выполняется в хранилище, найденный пользователь заменяется адаптером сессии по id.
+ */
+public class UserIdentityMap {
+
+    private final boolean ignoreCase;
+
+    private final Map<Long, UserAdapter> byId = new HashMap<>();
+    private final Map<String, UserAdapter> byUsername = new HashMap<>();
+    private final Map<String, UserAdapter> byEmail = new HashMap<>();
+    // ключи login и email, которые соответствуют нескольким пользователям
+    private final Set<String> ambiguousUsernames = new HashSet<>();
+    private final Set<String> ambiguousEmails = new HashSet<>();
+
+    public UserIdentityMap(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+
+    public UserAdapter getById(Long accountId) {
+        return accountId == null ? null : byId.get(accountId);
+    }
+
+    public UserAdapter getByUsername(String username) {
+        return username == null || ignoreCase ? null : byUsername.get(username);
+    }
+
+    public UserAdapter getByEmail(String email) {
+        return email == null || ignoreCase ? null : byEmail.get(email);
+    }
+
+    /**
+     * Регистрирует адаптер в карте. Если адаптер пользователя с тем же id уже зарегистрирован, возвращается он
+     * @param adapter новый адаптер пользователя
+     * @return адаптер, который необходимо использовать в сессии
+     */
+    public UserAdapter register(UserAdapter adapter) {
+        UserSnapshot snapshot = adapter.snapshot;
+        UserAdapter existing = byId.putIfAbsent(snapshot.getAccountId(), adapter);
+        if (existing != null) {
+            return existing;
+        }
+        index(adapter, snapshot);
+        return adapter;
+    }
+
+    /**
+     * Обновляет ключи login и email после изменения данных пользователя
+     * @param previous снимок данных пользователя до изменения
+     * @param current снимок данных пользователя после изменения
+     */
+    public void update(UserSnapshot previous, UserSnapshot current) {
+        UserAdapter adapter = byId.get(current.getAccountId());
+        if (adapter == null) return;
+        unindex(adapter, previous);
+        index(adapter, current);
+    }
+
+    public void remove(Long accountId) {
+        UserAdapter adapter = byId.remove(accountId);
+        if (adapter != null) unindex(adapter, adapter.snapshot);
+    }
+
+    private void index(UserAdapter adapter, UserSnapshot snapshot) {
+        if (ignoreCase) return;
+        index(byUsername, ambiguousUsernames, snapshot.getUsername(), adapter);
+        index(byEmail, ambiguousEmails, snapshot.getEmail(), adapter);
+    }
+
+    private void index(Map<String, UserAdapter> keys, Set<String> ambiguous, String value, UserAdapter adapter) {
+        if (value == null || ambiguous.contains(value)) return;
+        UserAdapter existing = keys.putIfAbsent(value, adapter);
+        if (existing != null && existing != adapter) {
+            keys.remove(value);
+            ambiguous.add(value);
+        }
+    }
+
+    private void unindex(UserAdapter adapter, UserSnapshot snapshot) {
+        if (snapshot.getUsername() != null) byUsername.remove(snapshot.getUsername(), adapter);
+        if (snapshot.getEmail() != null) byEmail.remove(snapshot.getEmail(), adapter);
+    }
+
+}
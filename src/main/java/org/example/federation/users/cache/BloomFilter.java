@@ -0,0 +1,147 @@
+package org.example.federation.users.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Фильтр Блума для отрицательных ответов при поиске пользователей по login и email.
+ * Если фильтр отвечает "значения нет", то в таблице privfastsm.accounts точно нет такого login или email,
+ * и обращение к jdbc хранилищу не требуется. Положительный ответ означает лишь "возможно есть".
+ * Значения хранятся без учета регистра, поэтому фильтр пригоден и для точного, и для регистронезависимого поиска.
+ * Удаление значений не поддерживается: устаревшие значения дают только ложноположительные ответы.
+ */
+public class BloomFilter {
+
+    private final int numBits;
+    private final int numHashes;
+    private final AtomicLongArray bits;
+    private final AtomicLong bitCount = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private volatile boolean ready;
+
+    /**
+     * @param expectedInsertions ожидаемое количество значений (login + email)
+     * @param falsePositiveRate допустимая доля ложноположительных ответов (например 0.01)
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.bits = new AtomicLongArray((numBits + 63) / 64);
+    }
+
+    /**
+     * Добавляет значение в фильтр
+     * @param value login или email пользователя, null игнорируется
+     */
+    public void put(String value) {
+        if (value == null) return;
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            int index = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if (setBit(index)) bitCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Проверяет возможное наличие значения. Пока фильтр не построен, всегда возвращает true
+     * @param value login или email пользователя
+     * @return false если значения точно нет в хранилище, true если оно возможно есть
+     */
+    public boolean mightContain(String value) {
+        if (!ready || value == null) return true;
+        checks.incrementAndGet();
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            int index = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Регистрирует ложноположительный ответ: фильтр ответил "возможно есть", а хранилище значение не нашло
+     */
+    public void falsePositive() {
+        if (ready) falsePositives.incrementAndGet();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * @return доля установленных битов фильтра (0..1). При заполнении выше 0.5 точность фильтра быстро падает
+     */
+    public double getFillRatio() {
+        return (double) bitCount.get() / numBits;
+    }
+
+    public long getChecks() {
+        return checks.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    /**
+     * @return наблюдаемая доля ложноположительных ответов среди ответов "возможно есть"
+     */
+    public double getFalsePositiveRate() {
+        long passed = checks.get() - rejected.get();
+        return passed == 0 ? 0 : (double) falsePositives.get() / passed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bits = %d, hashes = %d, fill = %.4f, checks = %d, rejected = %d, false positives = %d",
+                numBits, numHashes, getFillRatio(), getChecks(), getRejected(), getFalsePositives());
+    }
+
+    private boolean setBit(int index) {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long current = bits.get(word);
+            if ((current & mask) != 0) return false;
+            if (bits.compareAndSet(word, current, current | mask)) return true;
+        }
+    }
+
+    // 64-битный FNV-1a с финальным перемешиванием (murmur3 fmix64)
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e87ebL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.example.federation.users.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Режим деградации при медленном jdbc хранилище (stale-while-revalidate).
+ * Время каждой загрузки пользователя из хранилища сравнивается с бюджетом задержки операции. После заданного
+ * количества подряд превышений бюджета режим включается: поиск пользователей, отсутствующих в кэше, обслуживается
+ * последним известным (устаревшим) снимком, а обновление снимка выполняется асинхронно. После заданного количества
+ * подряд загрузок в пределах бюджета режим выключается. Изменения данных всегда записываются в хранилище.
+ */
+@Slf4j
+public class DegradedMode {
+
+    public static final String BY_ID = "byId";
+    public static final String BY_USERNAME = "byUsername";
+    public static final String BY_EMAIL = "byEmail";
+
+    private final boolean enabled;
+    private final long defaultBudgetMillis;
+    private final Map<String, Long> budgets = new HashMap<>();
+    private final int switchOnThreshold;
+    private final int switchOffThreshold;
+
+    private volatile boolean active;
+    private final AtomicInteger consecutiveSlow = new AtomicInteger();
+    private final AtomicInteger consecutiveFast = new AtomicInteger();
+    private final AtomicLong overBudget = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong switchedOn = new AtomicLong();
+
+    /**
+     * @param enabled режим разрешен настройками
+     * @param defaultBudgetMillis бюджет задержки загрузки по умолчанию, мс
+     * @param switchOnThreshold количество подряд превышений бюджета для включения режима
+     * @param switchOffThreshold количество подряд загрузок в пределах бюджета для выключения режима
+     */
+    public DegradedMode(boolean enabled, long defaultBudgetMillis, int switchOnThreshold, int switchOffThreshold) {
+        this.enabled = enabled;
+        this.defaultBudgetMillis = defaultBudgetMillis;
+        this.switchOnThreshold = Math.max(1, switchOnThreshold);
+        this.switchOffThreshold = Math.max(1, switchOffThreshold);
+    }
+
+    /**
+     * Задает отдельный бюджет задержки для операции (BY_ID, BY_USERNAME, BY_EMAIL)
+     */
+    public void setBudget(String operation, long budgetMillis) {
+        budgets.put(operation, budgetMillis);
+    }
+
+    public long getBudget(String operation) {
+        return budgets.getOrDefault(operation, defaultBudgetMillis);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isActive() {
+        return enabled && active;
+    }
+
+    /**
+     * Регистрирует время загрузки из хранилища и при достижении порогов включает или выключает режим
+     * @param operation операция загрузки
+     * @param elapsedMillis время загрузки, мс
+     */
+    public void record(String operation, long elapsedMillis) {
+        if (!enabled) return;
+        if (elapsedMillis > getBudget(operation)) {
+            overBudget.incrementAndGet();
+            consecutiveFast.set(0);
+            if (consecutiveSlow.incrementAndGet() >= switchOnThreshold && !active) {
+                active = true;
+                switchedOn.incrementAndGet();
+                log.warn(">>>> режим деградации включен: {} загрузок подряд дольше бюджета ({} = {} мс)",
+                        switchOnThreshold, operation, elapsedMillis);
+            }
+        } else {
+            consecutiveSlow.set(0);
+            if (consecutiveFast.incrementAndGet() >= switchOffThreshold && active) {
+                active = false;
+                log.info(">>>> режим деградации выключен: {} загрузок подряд в пределах бюджета", switchOffThreshold);
+            }
+        }
+    }
+
+    /**
+     * Регистрирует обслуживание поиска устаревшим снимком
+     */
+    public void staleServed() {
+        staleServed.incrementAndGet();
+    }
+
+    public long getOverBudget() {
+        return overBudget.get();
+    }
+
+    public long getStaleServed() {
+        return staleServed.get();
+    }
+
+    public long getSwitchedOn() {
+        return switchedOn.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("enabled = %s, active = %s, over budget = %d, stale served = %d, switched on = %d",
+                enabled, active, getOverBudget(), getStaleServed(), getSwitchedOn());
+    }
+
+}
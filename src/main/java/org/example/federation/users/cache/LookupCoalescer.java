@@ -0,0 +1,88 @@
+package org.example.federation.users.cache;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Объединение одновременных загрузок по одному ключу (single-flight).
+ * Первый поток, запросивший ключ, выполняет загрузку из jdbc хранилища, остальные потоки, запросившие тот же ключ
+ * до её завершения, ждут и получают тот же результат. Если ожидание превышает заданное время, или загрузка
+ * первого потока завершилась ошибкой, ожидающий поток выполняет загрузку самостоятельно.
+ * Результат загрузки должен быть неизменяемым (например UserSnapshot), так как он передается в другие сессии.
+ * @param <V> тип результата загрузки, null означает "не найдено"
+ */
+public class LookupCoalescer<V> {
+
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param timeoutMillis максимальное время ожидания чужой загрузки по одному ключу
+     */
+    public LookupCoalescer(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Возвращает результат загрузки по ключу, объединяя одновременные запросы одного ключа
+     * @param key ключ загрузки (должен включать id компонента провайдера)
+     * @param loader загрузка из jdbc хранилища
+     * @return результат загрузки
+     */
+    public V load(String key, Supplier<V> loader) {
+
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, own);
+        if (existing == null) {
+            executed.incrementAndGet();
+            try {
+                V value = loader.get();
+                own.complete(value);
+                return value;
+            } catch (RuntimeException e) {
+                own.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, own);
+            }
+        }
+
+        coalesced.incrementAndGet();
+        try {
+            return existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+        } catch (ExecutionException e) {
+            // загрузка первого потока завершилась ошибкой: повторяем в своем потоке, чтобы получить свою ошибку
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executed.incrementAndGet();
+        return loader.get();
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("executed = %d, coalesced = %d, timeouts = %d, in flight = %d",
+                getExecuted(), getCoalesced(), getTimeouts(), inFlight.size());
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.example.federation.users.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш курсоров постраничного чтения пользователей (keyset pagination), общий для всех сессий узла keycloak.
+ * Keycloak запрашивает страницы сдвигом firstResult, а каждая страница обрабатывается в отдельной сессии,
+ * поэтому курсор - (login, id) последней строки страницы - сохраняется по ключу запроса и сдвигу следующей
+ * страницы. Следующая страница читается условием "login >= :login and (login > :login or id > :id)", которое
+ * ограничивает диапазон индекса (login, id) снизу, без пропуска OFFSET строк.
+ * <br>Если курсора для сдвига нет (первое обращение, вытеснение, истечение TTL), страница читается через OFFSET.
+ * Добавление, удаление и изменение пользователя сдвигают строки относительно OFFSET, поэтому провайдер
+ * при этих изменениях сбрасывает курсоры компонента (clear).
+ */
+public class PageCursorCache {
+
+    /**
+     * Позиция в порядке (login, id): строки следующей страницы строго больше курсора.
+     * Строки без login упорядочены последними (nulls last) и читаются отдельным "хвостом" в порядке id,
+     * поэтому курсор без login - позиция в этом хвосте.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static final class Cursor {
+        private final String login;
+        private final Long accountId;
+
+        /**
+         * @return курсор перед первой строкой без login
+         */
+        public static Cursor nullLogins() {
+            return new Cursor(null, Long.MIN_VALUE);
+        }
+
+        /**
+         * @return true, если курсор указывает на позицию среди строк без login
+         */
+        public boolean isNullLogin() {
+            return login == null;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * @param maxSize максимальное количество курсоров. Ноль или отрицательное значение отключает кэш
+     * @param ttlMillis время жизни курсора в миллисекундах
+     */
+    public PageCursorCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PageCursorCache.this.maxSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @param queryKey ключ запроса (id компонента, имя запроса, строка поиска)
+     * @param offset сдвиг firstResult страницы
+     * @return курсор, с которого начинается страница, или null
+     */
+    public synchronized Cursor get(String queryKey, int offset) {
+        if (!isEnabled()) return null;
+        String key = queryKey + "|" + offset;
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.cursor;
+    }
+
+    /**
+     * Сохраняет курсор начала страницы со сдвигом offset
+     */
+    public synchronized void put(String queryKey, int offset, Cursor cursor) {
+        if (!isEnabled()) return;
+        entries.put(queryKey + "|" + offset, new Entry(cursor, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public synchronized void clear(String componentId) {
+        entries.keySet().removeIf(key -> key.startsWith(componentId + "|"));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @AllArgsConstructor
+    private static final class Entry {
+        private final Cursor cursor;
+        private final long expiresAt;
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.example.federation.users.cache;
+
+import org.example.federation.users.model.RoleSnapshot;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Каталог ролей хранилища (privfastsm.userroles) с правами ролей, общий для всех сессий узла keycloak.
+ * Содержит снимки всех ролей с индексами по id и по названию. Каталог полностью перечитывается фоновым потоком
+ * фабрики провайдера с заданным интервалом, отдельные роли обновляются при сохранении и удалении ролей
+ * провайдером и по уведомлениям об изменениях хранилища.
+ * <br>Индексы неизменяемы и заменяются целиком (copy-on-write), поэтому чтение выполняется без блокировок.
+ * Полная загрузка, начатая до изменения отдельной роли, не заменяет каталог (проверяется поколение каталога),
+ * чтобы удаленная роль не вернулась в каталог из устаревшего результата.
+ */
+public class RoleCatalogue {
+
+    private final long refreshIntervalMillis;
+    private volatile Map<Long, RoleSnapshot> byId = Collections.emptyMap();
+    private volatile Map<String, RoleSnapshot> byName = Collections.emptyMap();
+    private volatile boolean loaded;
+    private volatile long refreshedAt;
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param refreshIntervalMillis интервал полной загрузки каталога. Ноль или отрицательное значение
+     *                              отключает каталог
+     */
+    public RoleCatalogue(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    public boolean isEnabled() {
+        return refreshIntervalMillis > 0;
+    }
+
+    /**
+     * @return true, если каталог загружен и может отвечать на запросы
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * @return текущее поколение каталога, которое передается в load() после чтения всех ролей
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Заменяет содержимое каталога, если с начала чтения ролей каталог не изменялся
+     * @param roles снимки всех ролей хранилища
+     * @param generation поколение каталога, полученное до чтения ролей
+     * @return true, если каталог заменен
+     */
+    public synchronized boolean load(Collection<RoleSnapshot> roles, long generation) {
+        if (generation != this.generation.get()) return false;
+        Map<Long, RoleSnapshot> ids = new HashMap<>();
+        Map<String, RoleSnapshot> names = new HashMap<>();
+        roles.forEach(role -> {
+            ids.put(role.getRoleId(), role);
+            if (role.getName() != null) names.put(role.getName(), role);
+        });
+        publish(ids, names);
+        loaded = true;
+        refreshedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Обновляет отдельные роли: роли из списка found заменяются, остальные роли из roleIds удаляются
+     * @param roleIds id измененных ролей
+     * @param found снимки измененных ролей, которые есть в хранилище
+     */
+    public synchronized void update(Collection<Long> roleIds, Collection<RoleSnapshot> found) {
+        generation.incrementAndGet();
+        Map<Long, RoleSnapshot> ids = new HashMap<>(byId);
+        Map<String, RoleSnapshot> names = new HashMap<>(byName);
+        roleIds.forEach(id -> {
+            RoleSnapshot previous = ids.remove(id);
+            if (previous != null && previous.getName() != null) names.remove(previous.getName(), previous);
+        });
+        found.forEach(role -> {
+            RoleSnapshot previous = ids.put(role.getRoleId(), role);
+            if (previous != null && previous.getName() != null) names.remove(previous.getName(), previous);
+            if (role.getName() != null) names.put(role.getName(), role);
+        });
+        publish(ids, names);
+    }
+
+    public void put(RoleSnapshot role) {
+        update(Collections.singleton(role.getRoleId()), Collections.singleton(role));
+    }
+
+    public void remove(Long roleId) {
+        update(Collections.singleton(roleId), Collections.emptyList());
+    }
+
+    private void publish(Map<Long, RoleSnapshot> ids, Map<String, RoleSnapshot> names) {
+        byId = Collections.unmodifiableMap(ids);
+        byName = Collections.unmodifiableMap(names);
+    }
+
+    /**
+     * @return снимок роли или null, если роли нет в каталоге
+     */
+    public RoleSnapshot get(Long roleId) {
+        return count(byId.get(roleId));
+    }
+
+    /**
+     * @param name название роли (с учетом регистра)
+     * @return снимок роли или null, если роли нет в каталоге
+     */
+    public RoleSnapshot get(String name) {
+        return count(byName.get(name));
+    }
+
+    private RoleSnapshot count(RoleSnapshot role) {
+        (role == null ? misses : hits).incrementAndGet();
+        return role;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("loaded = %s, roles = %d, hits = %d, misses = %d, refreshed %d s ago", loaded, size(),
+                hits.get(), misses.get(), refreshedAt == 0 ? -1 : (System.currentTimeMillis() - refreshedAt) / 1000);
+    }
+
+}
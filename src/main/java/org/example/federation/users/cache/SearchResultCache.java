@@ -0,0 +1,118 @@
+package org.example.federation.users.cache;
+
+import lombok.AllArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш страниц результатов поиска пользователей с коротким временем жизни, общий для всех сессий узла keycloak.
+ * Ключ записи = id компонента + нормализованная строка поиска + страница (firstResult, maxResults),
+ * значение - id пользователей страницы. Любое изменение пользователей сбрасывает весь кэш.
+ * <br>Чтобы результат запроса, начатого до изменения, не попал в кэш после сброса, запись сохраняется только
+ * если поколение кэша (счетчик сбросов) не изменилось с начала запроса.
+ */
+public class SearchResultCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize максимальное количество страниц. Ноль или отрицательное значение отключает кэш
+     * @param ttlMillis время жизни страницы в миллисекундах
+     */
+    public SearchResultCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > SearchResultCache.this.maxSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * @return текущее поколение кэша, которое передается в put() после выполнения запроса
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return id пользователей страницы или null, если страницы нет в кэше
+     */
+    public synchronized List<Long> get(String componentId, String search, int firstResult, int maxResults) {
+        if (!isEnabled()) return null;
+        String key = key(componentId, search, firstResult, maxResults);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            if (entry != null) entries.remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        List<Long> ids = new ArrayList<>(entry.ids.length);
+        for (long id : entry.ids) ids.add(id);
+        return ids;
+    }
+
+    /**
+     * Сохраняет страницу, если с начала запроса кэш не сбрасывался
+     * @param generation поколение кэша, полученное до выполнения запроса
+     */
+    public synchronized void put(String componentId, String search, int firstResult, int maxResults,
+                                 List<Long> ids, long generation) {
+        if (!isEnabled() || generation != this.generation.get()) return;
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) array[i] = ids.get(i);
+        entries.put(key(componentId, search, firstResult, maxResults),
+                new Entry(array, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Сбрасывает все страницы (вызывается при любом изменении пользователей)
+     */
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    private static String key(String componentId, String search, int firstResult, int maxResults) {
+        return componentId + "|" + firstResult + "|" + maxResults + "|" + search;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pages = %d, hits = %d, misses = %d, hit rate = %.2f",
+                size(), hits.get(), misses.get(), getHitRate());
+    }
+
+    @AllArgsConstructor
+    private static final class Entry {
+        private final long[] ids;
+        private final long expiresAt;
+    }
+
+}
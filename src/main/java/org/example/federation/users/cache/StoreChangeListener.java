@@ -0,0 +1,28 @@
+package org.example.federation.users.cache;
+
+import java.util.Set;
+
+/**
+ * Получатель уведомлений об изменениях в таблицах схемы privfastsm, сделанных любым узлом keycloak
+ * или внешней системой (см. StoreChangeWatcher).
+ */
+public interface StoreChangeListener {
+
+    /**
+     * Изменены записи privfastsm.accounts или сопоставления ролей privfastsm.account_role
+     * @param accountIds id измененных пользователей
+     */
+    void accountsChanged(Set<Long> accountIds);
+
+    /**
+     * Изменены записи privfastsm.userroles или права ролей privfastsm.rights
+     * @param roleIds id измененных ролей
+     */
+    void rolesChanged(Set<Long> roleIds);
+
+    /**
+     * Часть уведомлений могла быть потеряна (например, при переподключении), все локальные данные устарели
+     */
+    void reset();
+
+}
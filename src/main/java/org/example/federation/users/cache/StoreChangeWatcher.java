@@ -0,0 +1,272 @@
+package org.example.federation.users.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отслеживает изменения таблиц privfastsm.accounts, account_role, userroles и rights, сделанные любым узлом
+ * keycloak или внешней системой, и передает id измененных пользователей и ролей получателю StoreChangeListener.
+ * <br>Триггеры схемы (см. UserStoreSchema.ensureChangeTriggers()) на каждое изменение записывают строку в журнал
+ * privfastsm.account_changes и отправляют уведомление NOTIFY в канал privfastsm_changes.
+ * <ul>
+ * <li>В режиме LISTEN наблюдатель держит одно выделенное jdbc соединение и получает уведомления сразу.</li>
+ * <li>Если соединение потеряно (или режим LISTEN отключен), изменения считываются из журнала с заданным
+ * интервалом опроса.</li>
+ * </ul>
+ * Журнал читается строго после последнего прочитанного id записи, поэтому каждое изменение передается получателю
+ * один раз. Id выдаются последовательностью при вставке, а видимыми записи становятся при фиксации транзакции,
+ * поэтому запись с меньшим id может появиться позже записи с большим id. Пропущенные id запоминаются и
+ * перечитываются следующими опросами, пока запись не появится или не пройдет GAP_WAIT_MILLIS (транзакция
+ * отменена). Если журнал не читался дольше срока хранения записей, изменения могли быть удалены, и получатель
+ * сбрасывает все локальные данные (reset()).
+ */
+@Slf4j
+public class StoreChangeWatcher implements Runnable {
+
+    public static final String CHANNEL = "privfastsm_changes";
+
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // сколько ждать появления записи с пропущенным id и сколько таких id помнить
+    private static final long GAP_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_GAPS = 10_000;
+    private static final String LAST_ID_SQL = "select coalesce(max(id), 0) from privfastsm.account_changes";
+    private static final String POLL_SQL = "select id, account_id, role_id from privfastsm.account_changes " +
+            "where id > ? or id = any(?) order by id";
+    private static final String PRUNE_SQL = "delete from privfastsm.account_changes " +
+            "where changed_at < now() - interval '1 day'";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final boolean listen;
+    private final long pollIntervalMillis;
+    private final StoreChangeListener listener;
+
+    private volatile boolean running;
+    private Thread thread;
+    // позиция в журнале: последний прочитанный id, пропущенные id (-> время обнаружения), время чтения
+    private long lastChangeId = -1;
+    private final Map<Long, Long> gaps = new LinkedHashMap<>();
+    private long lastReadAt;
+    private long lastPruned;
+
+    /**
+     * @param url jdbc адрес базы данных хранилища
+     * @param user имя пользователя базы данных
+     * @param password пароль пользователя базы данных
+     * @param listen true - получать уведомления LISTEN/NOTIFY, false - только опрашивать журнал изменений
+     * @param pollIntervalMillis интервал опроса журнала изменений (и проверки соединения в режиме LISTEN)
+     * @param listener получатель уведомлений
+     */
+    public StoreChangeWatcher(String url, String user, String password, boolean listen,
+                              long pollIntervalMillis, StoreChangeListener listener) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.listen = listen;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "user-storage-change-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true, если наблюдение запущено и не остановлено
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (listen) {
+                try (Connection connection = DriverManager.getConnection(url, user, password)) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("LISTEN " + CHANNEL);
+                    }
+                    // уведомления, отправленные пока соединения не было, потеряны: изменения после последней
+                    // прочитанной записи дочитываются из журнала, сброс - только если журнал их уже не содержит
+                    catchUp(connection);
+                    log.info(">>>> подписка на уведомления {} выполнена", CHANNEL);
+                    listen(connection);
+                } catch (SQLException e) {
+                    log.warn(">>>> соединение LISTEN {} недоступно, используется опрос журнала изменений: {}",
+                            CHANNEL, e.getMessage());
+                }
+            }
+            if (!running) break;
+            try {
+                poll();
+            } catch (SQLException e) {
+                log.warn(">>>> ошибка опроса журнала изменений privfastsm.account_changes: {}", e.getMessage());
+            }
+            try {
+                Thread.sleep(pollIntervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        log.info(">>>> наблюдение за изменениями хранилища остановлено");
+    }
+
+    private void catchUp(Connection connection) {
+        boolean covered;
+        try {
+            covered = readChanges(connection, true);
+        } catch (SQLException e) {
+            log.warn(">>>> ошибка чтения журнала изменений privfastsm.account_changes: {}", e.getMessage());
+            covered = false;
+        }
+        if (!covered) {
+            listener.reset();
+        }
+    }
+
+    private void listen(Connection connection) throws SQLException {
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        while (running) {
+            PGNotification[] notifications = pgConnection.getNotifications((int) pollIntervalMillis);
+            if (notifications != null && notifications.length > 0) {
+                Set<Long> accountIds = new HashSet<>();
+                Set<Long> roleIds = new HashSet<>();
+                for (PGNotification notification : notifications) {
+                    parse(notification.getParameter(), accountIds, roleIds);
+                }
+                dispatch(accountIds, roleIds);
+            }
+            // проверка соединения и позиция в журнале, с которой начнется чтение при потере соединения.
+            // Изменения уже переданы уведомлениями, поэтому журнал читается без передачи получателю
+            readChanges(connection, false);
+            pruneIfDue(connection);
+        }
+    }
+
+    private void poll() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, user, password)) {
+            if (!readChanges(connection, true)) {
+                listener.reset();
+            }
+            pruneIfDue(connection);
+        }
+    }
+
+    /**
+     * Читает журнал изменений после последнего прочитанного id и перечитывает пропущенные id.
+     * При первом чтении запоминается только последний id журнала.
+     * @param notify true - передать прочитанные изменения получателю
+     * @return false, если с прошлого чтения прошло больше срока хранения записей журнала и часть изменений
+     * могла быть удалена
+     */
+    boolean readChanges(Connection connection, boolean notify) throws SQLException {
+        long now = System.currentTimeMillis();
+        if (lastChangeId < 0) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(LAST_ID_SQL)) {
+                rs.next();
+                lastChangeId = rs.getLong(1);
+            }
+            lastReadAt = now;
+            return true;
+        }
+        boolean covered = now - lastReadAt < RETENTION_MILLIS - GAP_WAIT_MILLIS;
+        Set<Long> accountIds = new HashSet<>();
+        Set<Long> roleIds = new HashSet<>();
+        try (PreparedStatement statement = connection.prepareStatement(POLL_SQL)) {
+            statement.setLong(1, lastChangeId);
+            statement.setArray(2, connection.createArrayOf("bigint", gaps.keySet().toArray()));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    if (id > lastChangeId) {
+                        if (id - lastChangeId > MAX_GAPS) {
+                            covered = false;
+                        } else {
+                            for (long missing = lastChangeId + 1; missing < id; missing++) {
+                                gaps.put(missing, now);
+                            }
+                        }
+                        lastChangeId = id;
+                    } else {
+                        gaps.remove(id);
+                    }
+                    long accountId = rs.getLong(2);
+                    if (!rs.wasNull()) accountIds.add(accountId);
+                    long roleId = rs.getLong(3);
+                    if (!rs.wasNull()) roleIds.add(roleId);
+                }
+            }
+        }
+        lastReadAt = now;
+        // записи отмененных транзакций не появятся никогда
+        for (Iterator<Long> it = gaps.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() < GAP_WAIT_MILLIS) break;
+            it.remove();
+        }
+        if (gaps.size() > MAX_GAPS) {
+            gaps.clear();
+            covered = false;
+        }
+        if (notify) {
+            dispatch(accountIds, roleIds);
+        }
+        return covered;
+    }
+
+    private void dispatch(Set<Long> accountIds, Set<Long> roleIds) {
+        try {
+            if (!accountIds.isEmpty()) listener.accountsChanged(accountIds);
+            if (!roleIds.isEmpty()) listener.rolesChanged(roleIds);
+        } catch (RuntimeException e) {
+            log.warn(">>>> ошибка обработки уведомления об изменениях хранилища", e);
+        }
+    }
+
+    private void pruneIfDue(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastPruned < PRUNE_INTERVAL_MILLIS) return;
+        lastPruned = now;
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(PRUNE_SQL);
+        }
+    }
+
+    // формат уведомления: "{account_id}:{role_id}", любое из значений может быть пустым
+    static void parse(String payload, Set<Long> accountIds, Set<Long> roleIds) {
+        if (payload == null) return;
+        int separator = payload.indexOf(':');
+        String account = separator < 0 ? payload : payload.substring(0, separator);
+        String role = separator < 0 ? "" : payload.substring(separator + 1);
+        try {
+            if (!account.isEmpty()) accountIds.add(Long.parseLong(account));
+            if (!role.isEmpty()) roleIds.add(Long.parseLong(role));
+        } catch (NumberFormatException e) {
+            log.warn(">>>> некорректное уведомление {}: \"{}\"", CHANNEL, payload);
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package org.example.federation.users.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Фоновый прогрев кэша пользователей узла после запуска keycloak.
+ * Сначала выбираются id недавно активных пользователей (по умолчанию - по последней смене пароля
+ * password_change_date, либо произвольным sql запросом из настроек), затем снимки пользователей загружаются
+ * порциями и помещаются в кэш для всех компонентов провайдера. Количество одновременно загружаемых порций
+ * ограничено, чтобы прогрев не занимал больше заданной доли пула соединений.
+ */
+@Slf4j
+public class UserCacheWarmup implements Runnable {
+
+    public enum State { PENDING, RUNNING, DONE, FAILED }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final UserSnapshotCache cache;
+    private final Collection<String> componentIds;
+    private final int limit;
+    private final int batchSize;
+    private final int parallelism;
+    private final String query;
+
+    private volatile State state = State.PENDING;
+    private volatile int total;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    /**
+     * @param sessionFactory фабрика сессий keycloak
+     * @param cache кэш пользователей узла
+     * @param componentIds id компонентов провайдера, для которых прогревается кэш
+     * @param limit максимальное количество загружаемых пользователей
+     * @param batchSize количество пользователей в одной порции (один запрос "id in (...)")
+     * @param parallelism максимальное количество одновременно занятых соединений пула
+     * @param query sql запрос, возвращающий id пользователей в порядке убывания активности,
+     *              или null для выбора по password_change_date
+     */
+    public UserCacheWarmup(KeycloakSessionFactory sessionFactory, UserSnapshotCache cache,
+                           Collection<String> componentIds, int limit, int batchSize, int parallelism, String query) {
+        this.sessionFactory = sessionFactory;
+        this.cache = cache;
+        this.componentIds = componentIds;
+        this.limit = limit;
+        this.batchSize = batchSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.query = query;
+    }
+
+    @Override
+    public void run() {
+        state = State.RUNNING;
+        startedAt = System.currentTimeMillis();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "user-storage-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Long> ids = selectIds();
+            total = ids.size();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                List<Long> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+                futures.add(workers.submit(() -> loadBatch(batch)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            state = State.DONE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = State.FAILED;
+        } catch (Exception e) {
+            state = State.FAILED;
+            log.warn(">>>> ошибка прогрева кэша пользователей", e);
+        } finally {
+            workers.shutdownNow();
+            finishedAt = System.currentTimeMillis();
+            log.info(">>>> прогрев кэша пользователей завершен: {}", this);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Long> selectIds() {
+        List<Long> ids = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+            if (query == null) {
+                ids.addAll(em.createNamedQuery("getRecentlyActiveUserIds", Long.class)
+                        .setMaxResults(limit)
+                        .getResultList());
+            } else {
+                List<Object> rows = em.createNativeQuery(query).setMaxResults(limit).getResultList();
+                ids.addAll(rows.stream().map(id -> ((Number) id).longValue()).collect(Collectors.toList()));
+            }
+        });
+        return ids;
+    }
+
+    private void loadBatch(List<Long> batch) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EntityManager em = session.getProvider(JpaConnectionProvider.class, "user-store").getEntityManager();
+            long generation = cache.generation();
+            List<UserEntity> users = em.createNamedQuery("getUsersByIds", UserEntity.class)
+                    .setParameter("ids", batch)
+                    .setHint("org.hibernate.readOnly", true)
+                    .getResultList();
+            users.forEach(user -> {
+                UserSnapshot snapshot = UserSnapshot.of(user);
+                componentIds.forEach(componentId -> cache.put(componentId, snapshot, generation));
+            });
+            loaded.addAndGet(users.size());
+        });
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isReady() {
+        return state == State.DONE || state == State.FAILED;
+    }
+
+    public int getLoaded() {
+        return loaded.get();
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public long getDurationMillis() {
+        if (startedAt == 0) return 0;
+        return (finishedAt == 0 ? System.currentTimeMillis() : finishedAt) - startedAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("state = %s, loaded = %d of %d, duration = %d ms, parallelism = %d",
+                state, getLoaded(), total, getDurationMillis(), parallelism);
+    }
+
+}
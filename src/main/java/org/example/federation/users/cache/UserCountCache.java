@@ -0,0 +1,84 @@
+package org.example.federation.users.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш общего количества пользователей хранилища, общий для всех сессий узла keycloak.
+ * Значение обновляется только фоновым потоком фабрики провайдера с заданным интервалом:
+ * <ul>
+ * <li>EXACT - точный подсчет count(*), между обновлениями значение изменяется на +1/-1 при добавлении
+ * и удалении пользователей провайдером этого узла</li>
+ * <li>APPROXIMATE - оценка планировщика pg_class.reltuples (без чтения таблицы)</li>
+ * </ul>
+ * До первого обновления кэш пуст, и количество подсчитывается запросом в сессии.
+ */
+public class UserCountCache {
+
+    public enum Mode { NONE, EXACT, APPROXIMATE }
+
+    private final Mode mode;
+    private final long refreshIntervalMillis;
+    private final AtomicLong count = new AtomicLong(-1);
+    private volatile long refreshedAt;
+
+    /**
+     * @param mode режим кэша
+     * @param refreshIntervalMillis интервал фонового обновления значения
+     */
+    public UserCountCache(Mode mode, long refreshIntervalMillis) {
+        this.mode = mode;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.NONE && refreshIntervalMillis > 0;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * @return количество пользователей или -1, если значение еще не загружено
+     */
+    public long get() {
+        return isEnabled() ? count.get() : -1;
+    }
+
+    /**
+     * Устанавливает значение, полученное фоновым обновлением
+     */
+    public void set(long value) {
+        count.set(value);
+        refreshedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Учитывает пользователя, добавленного провайдером (только в режиме EXACT)
+     */
+    public void added() {
+        if (mode == Mode.EXACT) {
+            count.updateAndGet(value -> value < 0 ? value : value + 1);
+        }
+    }
+
+    /**
+     * Учитывает пользователя, удаленного провайдером (только в режиме EXACT)
+     */
+    public void removed() {
+        if (mode == Mode.EXACT) {
+            count.updateAndGet(value -> value <= 0 ? value : value - 1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mode = %s, count = %d, refreshed %d s ago", mode, count.get(),
+                refreshedAt == 0 ? -1 : (System.currentTimeMillis() - refreshedAt) / 1000);
+    }
+
+}
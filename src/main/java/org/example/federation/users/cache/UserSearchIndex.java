@@ -0,0 +1,257 @@
+package org.example.federation.users.cache;
+
+import lombok.AllArgsConstructor;
+import org.example.federation.users.model.UserSnapshot;
+import org.example.federation.users.search.UserSearchQuery;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Инвертированный триграммный индекс пользователей в памяти узла для поиска в консоли администратора.
+ * Индексируются login, email, имя, фамилия, отчество, подразделение и должность (те же столбцы, что и в поиске
+ * по словам UserSearchQuery) в нижнем регистре. Для каждой триграммы хранится отсортированный массив id
+ * пользователей long[]. Слово строки поиска отбирает кандидатов пересечением массивов его триграмм, затем
+ * вхождение слова проверяется по тексту пользователя. Результат упорядочен по (login, id), login сравнивается
+ * методом String.compareTo. Этот порядок может не совпадать с порядком "order by login, id" базы данных
+ * (правило сортировки базы данных), поэтому страницы одного просмотра нельзя читать частично из индекса
+ * и частично из базы данных (см. CustomUserStorageProviderFactory.getSearchIndex(int)).
+ * <br>Индекс не отвечает (возвращает null, поиск выполняется в базе данных), пока он не построен, и для строк
+ * поиска со словами короче трех символов или с символом "*".
+ */
+public class UserSearchIndex {
+
+    private static final int GRAM = 3;
+    private static final char FIELD_SEPARATOR = '\n';
+
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final Map<Long, Document> documents = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean ready;
+
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong declined = new AtomicLong();
+
+    /**
+     * Добавляет или обновляет пользователя в индексе
+     */
+    public void put(UserSnapshot snapshot) {
+        put(snapshot.getAccountId(), snapshot.getUsername(), snapshot.getEmail(), snapshot.getFirstName(),
+                snapshot.getLastName(), snapshot.getMiddleName(), snapshot.getDepartment(), snapshot.getPosition());
+    }
+
+    /**
+     * Добавляет или обновляет пользователя в индексе
+     * @param accountId id пользователя
+     * @param login login пользователя (определяет порядок результатов)
+     * @param fields остальные индексируемые значения (null пропускаются)
+     */
+    public void put(Long accountId, String login, String... fields) {
+        StringBuilder text = new StringBuilder(login == null ? "" : login.toLowerCase(Locale.ROOT));
+        for (String field : fields) {
+            if (field != null) text.append(FIELD_SEPARATOR).append(field.toLowerCase(Locale.ROOT));
+        }
+        Document document = new Document(login, text.toString());
+        lock.writeLock().lock();
+        try {
+            removeDocument(accountId);
+            documents.put(accountId, document);
+            for (long gram : grams(document.text)) {
+                postings.computeIfAbsent(gram, key -> new Postings()).add(accountId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Long accountId) {
+        lock.writeLock().lock();
+        try {
+            removeDocument(accountId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeDocument(Long accountId) {
+        Document previous = documents.remove(accountId);
+        if (previous == null) return;
+        for (long gram : grams(previous.text)) {
+            Postings list = postings.get(gram);
+            if (list != null && list.remove(accountId) && list.size == 0) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    /**
+     * Поиск пользователей, у которых каждое слово строки поиска содержится в одном из индексируемых значений
+     * @param search строка поиска (слова через пробел)
+     * @param firstResult начальный сдвиг в списке (отрицательное значение - с начала)
+     * @param maxResults максимальное количество в списке (отрицательное значение - без ограничения)
+     * @return id пользователей в порядке (login, id) индекса или null, если индекс не может ответить на запрос
+     */
+    public List<Long> search(String search, int firstResult, int maxResults) {
+        List<String> tokens = UserSearchQuery.tokenize(search);
+        if (!ready || tokens.isEmpty() || tokens.stream().anyMatch(token -> token.length() < GRAM || token.indexOf('*') >= 0)) {
+            declined.incrementAndGet();
+            return null;
+        }
+        answered.incrementAndGet();
+
+        List<Long> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // пересечение начинается с самого короткого списка
+            List<Postings> lists = new ArrayList<>();
+            for (String token : tokens) {
+                for (long gram : grams(token)) {
+                    Postings list = postings.get(gram);
+                    if (list == null) return Collections.emptyList();
+                    lists.add(list);
+                }
+            }
+            lists.sort(Comparator.comparingInt(list -> list.size));
+            long[] candidates = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+            int count = candidates.length;
+            for (int i = 1; i < lists.size() && count > 0; i++) {
+                count = intersect(candidates, count, lists.get(i));
+            }
+            for (int i = 0; i < count; i++) {
+                Document document = documents.get(candidates[i]);
+                if (document != null && tokens.stream().allMatch(document.text::contains)) {
+                    found.add(candidates[i]);
+                }
+            }
+            found.sort(Comparator.comparing((Long id) -> documents.get(id).login, Comparator.nullsLast(Comparator.naturalOrder()))
+                    .thenComparing(Comparator.naturalOrder()));
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int from = Math.min(Math.max(firstResult, 0), found.size());
+        int to = maxResults < 0 ? found.size() : Math.min(from + maxResults, found.size());
+        return found.subList(from, to);
+    }
+
+    // пересекает отсортированный массив кандидатов со списком, результат записывается в начало candidates
+    private static int intersect(long[] candidates, int count, Postings list) {
+        int result = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < list.size; ) {
+            long a = candidates[i];
+            long b = list.ids[j];
+            if (a == b) {
+                candidates[result++] = a;
+                i++;
+                j++;
+            } else if (a < b) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+
+    // триграммы текста, упакованные в long (три символа по 16 бит), без пересечения границ полей
+    private static Set<Long> grams(String text) {
+        Set<Long> grams = new HashSet<>();
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf(FIELD_SEPARATOR, start);
+            if (end < 0) end = text.length();
+            for (int i = start; i + GRAM <= end; i++) {
+                grams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+            }
+            start = end + 1;
+        }
+        return grams;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Оценка занимаемой индексом памяти в байтах (массивы списков, тексты пользователей и элементы хэш-таблиц)
+     */
+    public long estimateBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Postings list : postings.values()) {
+                // элемент таблицы + ключ Long + объект списка + массив
+                bytes += 32 + 16 + 24 + 16 + 8L * list.ids.length;
+            }
+            for (Document document : documents.values()) {
+                // элемент таблицы + ключ Long + объект документа + строки (до 2 байт на символ)
+                bytes += 32 + 16 + 24 + 40 + 2L * document.text.length() + (document.login == null ? 0 : 40 + 2L * document.login.length());
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        int grams;
+        lock.readLock().lock();
+        try {
+            grams = postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return String.format("ready = %s, users = %d, trigrams = %d, memory = %d KB, answered = %d, declined = %d",
+                ready, size(), grams, estimateBytes() / 1024, answered.get(), declined.get());
+    }
+
+    @AllArgsConstructor
+    private static final class Document {
+        private final String login;
+        private final String text;
+    }
+
+    // отсортированный по возрастанию список id пользователей
+    private static final class Postings {
+        private long[] ids = new long[2];
+        private int size;
+
+        private void add(long id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) return;
+            position = -position - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            ids[position] = id;
+            size++;
+        }
+
+        private boolean remove(long id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position < 0) return false;
+            System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+            size--;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package org.example.federation.users.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.model.UserSnapshot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш снимков пользователей, общий для всех сессий узла keycloak. Экземпляр создается фабрикой провайдера.
+ * Основной ключ записи = id компонента + id пользователя (accounts.id). Дополнительно поддерживаются индексы
+ * login -> id и email -> id, которые также привязаны к id компонента.
+ * Записи вытесняются по истечению времени жизни (TTL) и по размеру (вытесняется давно не использованная запись).
+ * Если задано время хранения устаревших записей, запись после истечения TTL остается в кэше и доступна методам
+ * getStale*() для режима деградации (см. DegradedMode).
+ * <br>Если индекс login или email совпадает у снимков разных пользователей, индекс удаляется и до очистки
+ * компонента не создается: такой поиск всегда выполняется в хранилище.
+ * <br>В режиме без учета регистра индексы login и email не ведутся: по снимкам кэша нельзя определить, нет ли
+ * в хранилище другого пользователя, значение которого отличается только регистром, поэтому такой поиск всегда
+ * выполняется в хранилище, которое сообщит о неоднозначности (ModelDuplicateException).
+ * <br>Каждое удаление записей увеличивает поколение кэша. Снимок, загруженный до удаления, не помещается в кэш
+ * (проверяется поколение, полученное до загрузки), чтобы прежние данные не вернулись в кэш после изменения.
+ */
+@Slf4j
+public class UserSnapshotCache {
+
+    private static final String KEY_ID = "|id|";
+    private static final String KEY_USERNAME = "|login|";
+    private static final String KEY_EMAIL = "|email|";
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final boolean ignoreCase;
+
+    // основной индекс, порядок доступа используется для вытеснения давно не использованных записей
+    private final LinkedHashMap<String, Entry> entries;
+    // вторичные индексы: ключ login/email -> основной ключ записи
+    private final Map<String, String> aliases = new HashMap<>();
+    // индексы login/email, которые соответствуют нескольким пользователям
+    private final Set<String> ambiguous = new HashSet<>();
+    // компоненты провайдера, для которых в кэше были записи
+    private final Set<String> components = new HashSet<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maxSize максимальное количество снимков в кэше. Ноль или отрицательное значение отключает кэш
+     * @param ttlMillis время жизни снимка в миллисекундах
+     * @param staleMillis время хранения записи после истечения TTL (0 - устаревшие записи не хранятся)
+     * @param ignoreCase режим регистронезависимого поиска: индексы login и email не ведутся
+     */
+    public UserSnapshotCache(int maxSize, long ttlMillis, long staleMillis, boolean ignoreCase) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = Math.max(0, staleMillis);
+        this.ignoreCase = ignoreCase;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    public UserSnapshot getById(String componentId, Long accountId) {
+        if (!isEnabled() || accountId == null) return null;
+        return get(idKey(componentId, accountId), false);
+    }
+
+    public UserSnapshot getByUsername(String componentId, String username) {
+        if (!isEnabled() || ignoreCase || username == null) return null;
+        return getByAlias(aliasKey(componentId, KEY_USERNAME, username), false);
+    }
+
+    public UserSnapshot getByEmail(String componentId, String email) {
+        if (!isEnabled() || ignoreCase || email == null) return null;
+        return getByAlias(aliasKey(componentId, KEY_EMAIL, email), false);
+    }
+
+    /**
+     * Возвращает снимок пользователя, в том числе с истекшим TTL (для режима деградации)
+     */
+    public UserSnapshot getStaleById(String componentId, Long accountId) {
+        if (!isEnabled() || accountId == null) return null;
+        return get(idKey(componentId, accountId), true);
+    }
+
+    public UserSnapshot getStaleByUsername(String componentId, String username) {
+        if (!isEnabled() || ignoreCase || username == null) return null;
+        return getByAlias(aliasKey(componentId, KEY_USERNAME, username), true);
+    }
+
+    public UserSnapshot getStaleByEmail(String componentId, String email) {
+        if (!isEnabled() || ignoreCase || email == null) return null;
+        return getByAlias(aliasKey(componentId, KEY_EMAIL, email), true);
+    }
+
+    /**
+     * @return текущее поколение кэша, которое передается в put() после загрузки снимка
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Помещает снимок пользователя в кэш (или заменяет имеющийся), если с начала загрузки снимка записи кэша
+     * не удалялись
+     * @param componentId id компонента провайдера
+     * @param snapshot снимок записи пользователя
+     * @param generation поколение кэша, полученное до загрузки снимка
+     */
+    public synchronized void put(String componentId, UserSnapshot snapshot, long generation) {
+
+        if (!isEnabled() || snapshot == null || snapshot.getAccountId() == null) return;
+        if (generation != this.generation.get()) return;
+        String key = idKey(componentId, snapshot.getAccountId());
+        removeEntry(key);
+
+        Entry entry = new Entry(componentId, snapshot, System.currentTimeMillis() + ttlMillis);
+        entries.put(key, entry);
+        components.add(componentId);
+        if (!ignoreCase && snapshot.getUsername() != null) {
+            putAlias(aliasKey(componentId, KEY_USERNAME, snapshot.getUsername()), key);
+        }
+        if (!ignoreCase && snapshot.getEmail() != null) {
+            putAlias(aliasKey(componentId, KEY_EMAIL, snapshot.getEmail()), key);
+        }
+
+        // вытесняем давно не использованные записи при превышении размера
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            removeAliases(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Удаляет из кэша снимок пользователя вместе с его индексами login и email
+     * @param componentId id компонента провайдера
+     * @param accountId id пользователя (accounts.id)
+     */
+    public synchronized void invalidate(String componentId, Long accountId) {
+        if (accountId == null) return;
+        generation.incrementAndGet();
+        removeEntry(idKey(componentId, accountId));
+    }
+
+    /**
+     * Удаляет из кэша снимки пользователя во всех компонентах провайдера
+     * (используется при получении уведомления об изменении записи в хранилище)
+     * @param accountId id пользователя (accounts.id)
+     */
+    public synchronized void invalidateAccount(Long accountId) {
+        if (accountId == null) return;
+        generation.incrementAndGet();
+        components.forEach(componentId -> removeEntry(idKey(componentId, accountId)));
+    }
+
+    /**
+     * Удаляет из кэша снимок, найденный по имени пользователя (например при создании нового пользователя)
+     */
+    public synchronized void invalidateUsername(String componentId, String username) {
+        if (username == null) return;
+        generation.incrementAndGet();
+        String key = aliases.get(aliasKey(componentId, KEY_USERNAME, username));
+        if (key != null) removeEntry(key);
+    }
+
+    /**
+     * Удаляет из кэша снимок, найденный по адресу электронной почты
+     */
+    public synchronized void invalidateEmail(String componentId, String email) {
+        if (email == null) return;
+        generation.incrementAndGet();
+        String key = aliases.get(aliasKey(componentId, KEY_EMAIL, email));
+        if (key != null) removeEntry(key);
+    }
+
+    /**
+     * Очищает все записи компонента провайдера
+     * @param componentId id компонента провайдера
+     */
+    public synchronized void clear(String componentId) {
+        generation.incrementAndGet();
+        entries.entrySet().removeIf(e -> e.getValue().componentId.equals(componentId));
+        aliases.keySet().removeIf(alias -> alias.startsWith(componentId + "|"));
+        ambiguous.removeIf(alias -> alias.startsWith(componentId + "|"));
+        components.remove(componentId);
+    }
+
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+        aliases.clear();
+        ambiguous.clear();
+        components.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized UserSnapshot getByAlias(String alias, boolean allowStale) {
+        String key = aliases.get(alias);
+        return key == null ? null : get(key, allowStale);
+    }
+
+    private synchronized UserSnapshot get(String key, boolean allowStale) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        long now = System.currentTimeMillis();
+        if (entry.expiresAt + staleMillis < now) {
+            removeEntry(key);
+            return null;
+        }
+        if (entry.expiresAt < now && !allowStale) {
+            return null;
+        }
+        return entry.snapshot;
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) removeAliases(key, entry);
+    }
+
+    private void putAlias(String alias, String key) {
+        if (ambiguous.contains(alias)) return;
+        String existing = aliases.putIfAbsent(alias, key);
+        if (existing != null && !existing.equals(key)) {
+            aliases.remove(alias);
+            ambiguous.add(alias);
+        }
+    }
+
+    private void removeAliases(String key, Entry entry) {
+        UserSnapshot snapshot = entry.snapshot;
+        if (snapshot.getUsername() != null) aliases.remove(aliasKey(entry.componentId, KEY_USERNAME, snapshot.getUsername()), key);
+        if (snapshot.getEmail() != null) aliases.remove(aliasKey(entry.componentId, KEY_EMAIL, snapshot.getEmail()), key);
+    }
+
+    private String aliasKey(String componentId, String kind, String value) {
+        return componentId + kind + value;
+    }
+
+    private static String idKey(String componentId, Long accountId) {
+        return componentId + KEY_ID + accountId;
+    }
+
+    private static final class Entry {
+        private final String componentId;
+        private final UserSnapshot snapshot;
+        private final long expiresAt;
+
+        private Entry(String componentId, UserSnapshot snapshot, long expiresAt) {
+            this.componentId = componentId;
+            this.snapshot = snapshot;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
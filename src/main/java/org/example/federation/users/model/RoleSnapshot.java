@@ -0,0 +1,49 @@
+package org.example.federation.users.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Неизменяемый снимок записи таблицы privfastsm.userroles вместе с правами роли (таблица privfastsm.rights).
+ * Используется каталогом ролей, общим для всех сессий узла keycloak, для поиска ролей без обращения
+ * к jdbc хранилищу. Изменения всегда вносятся через управляемую сущность UserRoleEntity.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public final class RoleSnapshot {
+
+    /**
+     * Право роли: имя объекта (target_object_name) и условие (condition)
+     */
+    @Getter
+    @AllArgsConstructor
+    public static final class Right {
+        private final String keyName;
+        private final String valueName;
+    }
+
+    private final Long roleId;
+    private final String name;
+    private final String description;
+    private final List<Right> rights;
+
+    /**
+     * Создает снимок текущего состояния сущности роли (список прав роли должен быть загружен)
+     * @param entity сущность роли из jdbc хранилища
+     * @return неизменяемый снимок записи
+     */
+    public static RoleSnapshot of(@NonNull UserRoleEntity entity) {
+        List<Right> rights = entity.getRightsList().stream()
+                .map(right -> new Right(right.getKeyName(), right.getValueName()))
+                .collect(Collectors.toList());
+        return new RoleSnapshot(entity.getRoleId(), entity.getName(), entity.getDescription(),
+                Collections.unmodifiableList(rights));
+    }
+
+}
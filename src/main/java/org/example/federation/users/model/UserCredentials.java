@@ -0,0 +1,20 @@
+package org.example.federation.users.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Минимальная проекция записи privfastsm.accounts для проверки пароля при входе (id, login и хэш пароля).
+ * Используется только тогда, когда пароля нет ни в кэше keycloak, ни в снимке адаптера пользователя.
+ * Загружается JPQL запросом с конструктором (именованный запрос getUserCredentialsById), поэтому не создает
+ * управляемой сущности и не участвует в проверке изменений при сбросе контекста персистентности.
+ */
+@Getter
+@AllArgsConstructor
+public final class UserCredentials {
+
+    private final Long accountId;
+    private final String username;
+    private final String password;
+
+}
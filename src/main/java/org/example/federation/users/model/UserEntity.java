@@ -13,13 +13,34 @@ import java.util.*;
 @Entity
 @Table(name = "accounts", schema = "privfastsm")
 @NamedQueries({
-        @NamedQuery(name="getAllUsers", query="select u from UserEntity u"),
+        @NamedQuery(name="getAllUsers", query="select u from UserEntity u order by u.username, u.accountId"),
+        @NamedQuery(name="getAllUsersAfter", query="select u from UserEntity u where " +
+                "u.username >= :login and (u.username > :login or u.accountId > :id) " +
+                "order by u.username, u.accountId"),
+        @NamedQuery(name="getAllUsersWithoutLoginAfter", query="select u from UserEntity u where " +
+                "u.username is null and u.accountId > :id order by u.accountId"),
+        @NamedQuery(name="getUsersByIds", query="select u from UserEntity u where u.accountId in :ids"),
         @NamedQuery(name="getUserByUsername", query="select u from UserEntity u where u.username = :username"),
         @NamedQuery(name="getUserByEmail", query="select u from UserEntity u where u.email = :email"),
+        @NamedQuery(name="getUserByUsernameIgnoreCase", query="select u from UserEntity u where lower(u.username) = :username"),
+        @NamedQuery(name="getUserByEmailIgnoreCase", query="select u from UserEntity u where lower(u.email) = :email"),
+        @NamedQuery(name="getUserWithRolesById", query="select distinct u from UserEntity u " +
+                "left join fetch u.roleList r left join fetch r.rightsList where u.accountId = :id"),
+        @NamedQuery(name="getUserRoleIds", query="select r.roleId from UserEntity u join u.roleList r " +
+                "where u.accountId = :id"),
+        @NamedQuery(name="getUserCredentialsById", query="select new org.example.federation.users.model.UserCredentials(" +
+                "u.accountId, u.username, u.password) from UserEntity u where u.accountId = :id"),
+        @NamedQuery(name="getRecentlyActiveUserIds", query="select u.accountId from UserEntity u " +
+                "where u.passwordChangeDate is not null order by u.passwordChangeDate desc"),
         @NamedQuery(name="getUserCount", query="select count(u) from UserEntity u"),
-        @NamedQuery(name="searchForUser", query="select u from UserEntity u where " +
-                "( lower(u.username) like :search or u.email like :search ) order by u.username"),
+        @NamedQuery(name="getAllLoginsAndEmails", query="select u.username, u.email from UserEntity u"),
+        @NamedQuery(name="getAllSearchFields", query="select u.accountId, u.username, u.email, u.firstName, u.lastName, " +
+                "u.middleName, u.department, u.position from UserEntity u"),
+        @NamedQuery(name="getSearchFieldsByIds", query="select u.accountId, u.username, u.email, u.firstName, u.lastName, " +
+                "u.middleName, u.department, u.position from UserEntity u where u.accountId in :ids"),
 })
+@NamedNativeQuery(name="estimateUserCount", query="select cast(reltuples as bigint) from pg_class " +
+        "where oid = to_regclass('privfastsm.accounts')")
 public class UserEntity {
 
     @Id
@@ -76,6 +97,16 @@ public class UserEntity {
         }
     }
 
+    /**
+     * Добавляет роль только на владеющей стороне связи (таблица account_role). Список пользователей роли
+     * не загружается, поэтому роль может быть ссылкой em.getReference() без чтения записи роли.
+     */
+    public void addUserRoleReference(UserRoleEntity role) {
+        if (role != null) {
+            roleList.add(role);
+        }
+    }
+
     public void removeUserRole(UserRoleEntity role) {
         if (role != null) {
             roleList.remove(role);
@@ -16,6 +16,12 @@ import java.util.*;
 @NamedQueries({
         @NamedQuery(name="getAllRoles", query="select r from UserRoleEntity r"),
         @NamedQuery(name="getRoleByName", query="select r from UserRoleEntity r where r.name = :name"),
+        @NamedQuery(name="getRoleIdsAfter", query="select r.roleId from UserRoleEntity r where r.roleId > :id " +
+                "order by r.roleId"),
+        @NamedQuery(name="getAllRolesWithRights", query="select distinct r from UserRoleEntity r " +
+                "left join fetch r.rightsList"),
+        @NamedQuery(name="getRolesWithRightsByIds", query="select distinct r from UserRoleEntity r " +
+                "left join fetch r.rightsList where r.roleId in :ids"),
         @NamedQuery(name="searchForRoles", query="select r from UserRoleEntity r where " +
                 "( lower(r.name) like :search or lower(r.description) like :search) order by r.name")
 
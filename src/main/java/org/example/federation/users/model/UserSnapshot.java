@@ -0,0 +1,83 @@
+package org.example.federation.users.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.sql.Timestamp;
+
+/**
+ * Неизменяемый снимок записи таблицы privfastsm.accounts.
+ * Используется кэшем пользователей, общим для всех сессий узла keycloak, и адаптером UserAdapter для чтения
+ * данных без обращения к jdbc хранилищу. Изменения всегда вносятся через управляемую сущность UserEntity.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public final class UserSnapshot {
+
+    private final Long accountId;
+    private final String username;
+    private final String password;
+    private final String status;
+    private final String lastName;
+    private final String firstName;
+    private final String middleName;
+    private final String email;
+    private final String phone;
+    private final String department;
+    private final String position;
+    private final Long created;
+    private final String ipAddress;
+    private final int maxSessions;
+    private final int maxIdleTime;
+    @Getter(AccessLevel.NONE)
+    private final Long blockingDate;
+    private final boolean bannerViewed;
+    @Getter(AccessLevel.NONE)
+    private final Long passwordChangeDate;
+
+    /**
+     * Создает снимок текущего состояния сущности пользователя
+     * @param entity сущность пользователя из jdbc хранилища
+     * @return неизменяемый снимок записи
+     */
+    public static UserSnapshot of(@NonNull UserEntity entity) {
+        return new UserSnapshot(
+                entity.getAccountId(),
+                entity.getUsername(),
+                entity.getPassword(),
+                entity.getStatus(),
+                entity.getLastName(),
+                entity.getFirstName(),
+                entity.getMiddleName(),
+                entity.getEmail(),
+                entity.getPhone(),
+                entity.getDepartment(),
+                entity.getPosition(),
+                entity.getCreated(),
+                entity.getIpAddress(),
+                entity.getMaxSessions(),
+                entity.getMaxIdleTime(),
+                toMillis(entity.getBlockingDate()),
+                entity.isBannerViewed(),
+                toMillis(entity.getPasswordChangeDate()));
+    }
+
+    public Timestamp getBlockingDate() {
+        return toTimestamp(blockingDate);
+    }
+
+    public Timestamp getPasswordChangeDate() {
+        return toTimestamp(passwordChangeDate);
+    }
+
+    private static Long toMillis(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.getTime();
+    }
+
+    private static Timestamp toTimestamp(Long millis) {
+        return millis == null ? null : new Timestamp(millis);
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.example.federation.users.schema;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Проверка и создание индексов таблицы privfastsm.accounts, которые ускоряют запросы провайдера.
+ * Индексы создаются командой CREATE INDEX CONCURRENTLY, которая не блокирует запись в таблицу, но не может
+ * выполняться в транзакции, поэтому проверка и создание выполняются через отдельное соединение jdbc в режиме
+ * autocommit, а не через менеджер сущностей хранилища. Фабрика провайдера выполняет проверку в фоновом потоке.
+ * <br>Прерванное построение CONCURRENTLY оставляет недействительный индекс (pg_index.indisvalid = false),
+ * такой индекс удаляется и строится заново. Те же команды для ручного выполнения (provisionSchema = false)
+ * находятся в файле db/privfastsm-indexes.sql.
+ */
+@Slf4j
+public class UserStoreIndexes {
+
+    // индексы по выражению для регистронезависимого поиска по login и email
+    private static final Map<String, String> LOOKUP_INDEXES = new LinkedHashMap<>();
+
+    static {
+        LOOKUP_INDEXES.put("accounts_lower_login_idx",
+                "create index concurrently if not exists accounts_lower_login_idx on privfastsm.accounts (lower(login))");
+        LOOKUP_INDEXES.put("accounts_lower_email_idx",
+                "create index concurrently if not exists accounts_lower_email_idx on privfastsm.accounts (lower(email))");
+    }
+
+    // индексы точного поиска по атрибутам пользователя (searchForUserByUserAttributeStream)
+    private static final Map<String, String> ATTRIBUTE_INDEXES = new LinkedHashMap<>();
+
+    static {
+        for (String column : new String[]{"phone", "department", "position", "ip", "middle_name"}) {
+            ATTRIBUTE_INDEXES.put("accounts_" + column + "_idx",
+                    "create index concurrently if not exists accounts_" + column + "_idx on privfastsm.accounts (" + column + ")");
+        }
+    }
+
+    // индекс порядка (login, id) для постраничного чтения по курсору
+    private static final Map<String, String> PAGING_INDEXES = new LinkedHashMap<>();
+
+    static {
+        PAGING_INDEXES.put("accounts_login_id_idx",
+                "create index concurrently if not exists accounts_login_id_idx on privfastsm.accounts (login, id)");
+    }
+
+    // триграммные GIN индексы (расширение pg_trgm) для поиска пользователей по подстроке и по сходству
+    private static final Map<String, String> TRIGRAM_INDEXES = new LinkedHashMap<>();
+
+    static {
+        for (String column : new String[]{"login", "email", "first_name", "last_name", "middle_name", "department", "position"}) {
+            TRIGRAM_INDEXES.put("accounts_" + column + "_trgm_idx",
+                    "create index concurrently if not exists accounts_" + column + "_trgm_idx on privfastsm.accounts " +
+                    "using gin (lower(" + column + ") gin_trgm_ops)");
+        }
+    }
+
+    private static final String INDEX_VALID_SQL = "select i.indisvalid from pg_index i " +
+            "join pg_class c on c.oid = i.indexrelid join pg_namespace n on n.oid = c.relnamespace " +
+            "where n.nspname = ? and c.relname = ?";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final boolean provision;
+
+    /**
+     * @param url jdbc адрес хранилища
+     * @param user имя пользователя базы данных
+     * @param password пароль пользователя базы данных
+     * @param provision true - создавать недостающие индексы, false - только проверять их наличие
+     */
+    public UserStoreIndexes(String url, String user, String password, boolean provision) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.provision = provision;
+    }
+
+    /**
+     * Проверяет (и при необходимости создает) индексы lower(login) и lower(email) для регистронезависимого поиска
+     */
+    public void ensureLookupIndexes() {
+        ensureIndexes(LOOKUP_INDEXES);
+    }
+
+    /**
+     * Проверяет (и при необходимости создает) индексы по столбцам phone, department, position, ip, middle_name
+     * для точного поиска пользователей по атрибутам
+     */
+    public void ensureAttributeIndexes() {
+        ensureIndexes(ATTRIBUTE_INDEXES);
+    }
+
+    /**
+     * Проверяет (и при необходимости создает) индекс (login, id) для постраничного чтения пользователей по курсору
+     */
+    public void ensurePagingIndexes() {
+        ensureIndexes(PAGING_INDEXES);
+    }
+
+    /**
+     * Проверяет (и при необходимости создает) триграммные GIN индексы по lower(login), lower(email),
+     * lower(first_name), lower(last_name), lower(middle_name), lower(department), lower(position).
+     * Индексы используются условиями "lower(столбец) like '%слово%'" поиска по словам и оператором {@code <%}
+     * поиска по сходству. Расширение pg_trgm должно быть создано заранее (см. UserStoreSchema.ensureTrigramExtension()).
+     */
+    public void ensureTrigramIndexes() {
+        ensureIndexes(TRIGRAM_INDEXES);
+    }
+
+    protected void ensureIndexes(Map<String, String> indexes) {
+        if (url == null) {
+            log.warn(">>>> не задан jdbc адрес хранилища, индексы {} не проверены", indexes.keySet());
+            return;
+        }
+        try (Connection connection = DriverManager.getConnection(url, user, password)) {
+            connection.setAutoCommit(true);
+            for (Map.Entry<String, String> index : indexes.entrySet()) {
+                ensureIndex(connection, index.getKey(), index.getValue());
+            }
+        } catch (SQLException e) {
+            log.warn(">>>> ошибка проверки индексов {}: {}", indexes.keySet(), e.getMessage());
+        }
+    }
+
+    private void ensureIndex(Connection connection, String name, String ddl) throws SQLException {
+        Boolean valid = indexValid(connection, name);
+        if (Boolean.TRUE.equals(valid)) return;
+        if (!provision) {
+            log.warn(">>>> индекс {}.{} {}, запросы будут выполняться последовательным сканированием",
+                    UserStoreSchema.SCHEMA, name, valid == null ? "отсутствует" : "недействителен");
+            return;
+        }
+        long started = System.currentTimeMillis();
+        try (Statement statement = connection.createStatement()) {
+            if (valid != null) {
+                statement.execute("drop index concurrently if exists " + UserStoreSchema.SCHEMA + "." + name);
+            }
+            statement.execute(ddl);
+            log.info(">>>> индекс {}.{} создан за {} мс", UserStoreSchema.SCHEMA, name, System.currentTimeMillis() - started);
+        } catch (SQLException e) {
+            log.warn(">>>> ошибка выполнения \"{}\": {}", ddl, e.getMessage());
+        }
+    }
+
+    /**
+     * @return true - индекс есть и действителен, false - индекс недействителен, null - индекса нет
+     */
+    private static Boolean indexValid(Connection connection, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INDEX_VALID_SQL)) {
+            statement.setString(1, UserStoreSchema.SCHEMA);
+            statement.setString(2, name);
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() ? rows.getBoolean(1) : null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.example.federation.users.schema;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Проверка и создание объектов базы данных (расширений, функций, триггеров), необходимых провайдеру
+ * в схеме privfastsm. Индексы таблицы privfastsm.accounts проверяются отдельно (см. UserStoreIndexes).
+ * Все объекты создаются идемпотентно, ошибки создания не прерывают запуск keycloak: провайдер продолжает
+ * работать, но соответствующие возможности будут недоступны.
+ * <br>Команды DDL выполняются через отдельное соединение jdbc в режиме autocommit (как в UserStoreIndexes),
+ * а не в транзакции менеджера сущностей хранилища (единица хранения JTA): каждая команда фиксируется сама
+ * по себе, и ошибка одной команды не прерывает остальные.
+ */
+@Slf4j
+public class UserStoreSchema {
+
+    public static final String SCHEMA = "privfastsm";
+
+    // журнал изменений и функция триггеров уведомления об изменениях (см. StoreChangeWatcher)
+    private static final String CHANGE_LOG_TABLE =
+            "create table if not exists privfastsm.account_changes (" +
+            " id bigserial primary key," +
+            " account_id bigint," +
+            " role_id bigint," +
+            " changed_at timestamp not null default now())";
+    private static final String CHANGE_LOG_INDEX =
+            "create index if not exists account_changes_changed_at_idx on privfastsm.account_changes (changed_at)";
+    private static final String CHANGE_FUNCTION =
+            "create or replace function privfastsm.notify_change() returns trigger as $$\n" +
+            "declare\n" +
+            "  rec record;\n" +
+            "  account bigint;\n" +
+            "  role bigint;\n" +
+            "begin\n" +
+            "  if TG_OP = 'DELETE' then rec := OLD; else rec := NEW; end if;\n" +
+            "  if TG_TABLE_NAME = 'accounts' then account := rec.id;\n" +
+            "  elsif TG_TABLE_NAME = 'account_role' then account := rec.account_id; role := rec.role_id;\n" +
+            "  elsif TG_TABLE_NAME = 'userroles' then role := rec.id;\n" +
+            "  elsif TG_TABLE_NAME = 'rights' then role := rec.userrole;\n" +
+            "  end if;\n" +
+            "  insert into privfastsm.account_changes (account_id, role_id) values (account, role);\n" +
+            "  perform pg_notify('privfastsm_changes', coalesce(account::text, '') || ':' || coalesce(role::text, ''));\n" +
+            "  return null;\n" +
+            "end;\n" +
+            "$$ language plpgsql";
+    private static final String[] CHANGE_TABLES = {"accounts", "account_role", "userroles", "rights"};
+
+    private static final String TRIGGER_EXISTS_SQL = "select count(*) from pg_trigger t " +
+            "join pg_class c on c.oid = t.tgrelid join pg_namespace n on n.oid = c.relnamespace " +
+            "where n.nspname = ? and t.tgname = ?";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final boolean provision;
+
+    /**
+     * @param url jdbc адрес хранилища
+     * @param user имя пользователя базы данных
+     * @param password пароль пользователя базы данных
+     * @param provision true - создавать недостающие объекты, false - только проверять их наличие
+     */
+    public UserStoreSchema(String url, String user, String password, boolean provision) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.provision = provision;
+    }
+
+    /**
+     * Проверяет (и при необходимости создает) расширение pg_trgm, которое нужно триграммным индексам
+     * (см. UserStoreIndexes) и функциям поиска по сходству
+     */
+    public void ensureTrigramExtension() {
+        if (!provision) return;
+        withConnection("расширение pg_trgm", connection -> execute(connection, "create extension if not exists pg_trgm"));
+    }
+
+    /**
+     * Проверяет (и при необходимости создает) журнал изменений privfastsm.account_changes, функцию
+     * privfastsm.notify_change() и триггеры, которые вызывают её при изменении таблиц accounts, account_role,
+     * userroles и rights. Функция пересоздается при каждом запуске, триггеры создаются только при отсутствии.
+     */
+    public void ensureChangeTriggers() {
+        withConnection("триггеры уведомления об изменениях", connection -> {
+            if (!provision) {
+                for (String table : CHANGE_TABLES) {
+                    if (!triggerExists(connection, table + "_notify_change")) {
+                        log.warn(">>>> триггер {}.{}_notify_change отсутствует, изменения таблицы {} не будут " +
+                                "сбрасывать кэш провайдера на других узлах", SCHEMA, table, table);
+                    }
+                }
+                return;
+            }
+            execute(connection, CHANGE_LOG_TABLE);
+            execute(connection, CHANGE_LOG_INDEX);
+            execute(connection, CHANGE_FUNCTION);
+            for (String table : CHANGE_TABLES) {
+                String trigger = table + "_notify_change";
+                if (triggerExists(connection, trigger)) continue;
+                if (execute(connection, "create trigger " + trigger + " after insert or update or delete on privfastsm." +
+                        table + " for each row execute procedure privfastsm.notify_change()")) {
+                    log.info(">>>> триггер {}.{} создан", SCHEMA, trigger);
+                }
+            }
+        });
+    }
+
+    private interface ConnectionTask {
+        void run(Connection connection) throws SQLException;
+    }
+
+    private void withConnection(String objects, ConnectionTask task) {
+        if (url == null) {
+            log.warn(">>>> не задан jdbc адрес хранилища, {} не проверены", objects);
+            return;
+        }
+        try (Connection connection = DriverManager.getConnection(url, user, password)) {
+            connection.setAutoCommit(true);
+            task.run(connection);
+        } catch (SQLException e) {
+            log.warn(">>>> ошибка проверки объектов хранилища ({}): {}", objects, e.getMessage());
+        }
+    }
+
+    protected boolean triggerExists(Connection connection, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(TRIGGER_EXISTS_SQL)) {
+            statement.setString(1, SCHEMA);
+            statement.setString(2, name);
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() && rows.getInt(1) > 0;
+            }
+        }
+    }
+
+    /**
+     * Выполняет команду DDL отдельной транзакцией (autocommit)
+     * @return true, если команда выполнена
+     */
+    protected boolean execute(Connection connection, String sql) {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+            return true;
+        } catch (SQLException e) {
+            log.warn(">>>> ошибка выполнения \"{}\": {}", sql, e.getMessage());
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package org.example.federation.users.search;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.federation.users.cache.PageCursorCache;
+import org.example.federation.users.model.UserEntity;
+import org.keycloak.models.UserModel;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.*;
+import java.util.*;
+
+/**
+ * Построитель запроса поиска пользователей по параметрам REST API (searchForUserStream(realm, params)).
+ * Каждый параметр превращается в условие запроса к таблице privfastsm.accounts, поэтому фильтрация выполняется
+ * базой данных, а не keycloak в памяти.
+ * <ul>
+ * <li>{@link UserModel#USERNAME}, {@link UserModel#FIRST_NAME}, {@link UserModel#LAST_NAME},
+ * {@link UserModel#EMAIL}, middle_name - подстрока без учета регистра, при {@link UserModel#EXACT} = true -
+ * точное совпадение без учета регистра</li>
+ * <li>{@link UserModel#ENABLED} - статус ACTIVE (true) или любой другой статус (false)</li>
+ * <li>phone, department, position, ip (ip_address) - точное совпадение</li>
+ * <li>{@link UserModel#SEARCH} - список слов, разделенных пробелами: каждое слово должно содержаться
+ * (без учета регистра) хотя бы в одном из столбцов login, email, first_name, last_name, middle_name, department,
+ * position. Символ "*" в слове - любая последовательность символов, слово "*" - любое значение</li>
+ * </ul>
+ * Все слова проверяются одним запросом (AND по словам, OR по столбцам), условия "lower(столбец) like" выполняются
+ * по триграммным индексам (см. UserStoreIndexes.ensureTrigramIndexes()).
+ * Остальные параметры (EMAIL_VERIFIED, IDP_ALIAS и т.д.) в хранилище не представлены и не учитываются.
+ */
+@Slf4j
+public class UserSearchQuery {
+
+    private static final String STATUS_ACTIVE = "ACTIVE";
+    // символ экранирования % и _ в шаблонах like (строка поиска не должна задавать свои шаблоны)
+    private static final char LIKE_ESCAPE = '\\';
+
+    // параметры, которые сравниваются как подстрока (или точно при EXACT) без учета регистра -> поле UserEntity
+    private static final Map<String, String> TEXT_FIELDS = new LinkedHashMap<>();
+    // атрибуты пользователя, которые сравниваются точно -> поле UserEntity
+    private static final Map<String, String> EXACT_FIELDS = new LinkedHashMap<>();
+    // поля UserEntity, в которых ищется каждое слово строки поиска
+    private static final String[] SEARCH_FIELDS =
+            {"username", "email", "firstName", "lastName", "middleName", "department", "position"};
+
+    static {
+        TEXT_FIELDS.put(UserModel.USERNAME, "username");
+        TEXT_FIELDS.put(UserModel.FIRST_NAME, "firstName");
+        TEXT_FIELDS.put(UserModel.LAST_NAME, "lastName");
+        TEXT_FIELDS.put(UserModel.EMAIL, "email");
+        TEXT_FIELDS.put("middle_name", "middleName");
+
+        EXACT_FIELDS.put("middle_name", "middleName");
+        EXACT_FIELDS.put("phone", "phone");
+        EXACT_FIELDS.put("department", "department");
+        EXACT_FIELDS.put("position", "position");
+        EXACT_FIELDS.put("ip", "ipAddress");
+        EXACT_FIELDS.put("ip_address", "ipAddress");
+    }
+
+    private final Map<String, String> params;
+    private final boolean exact;
+    private final List<String> tokens;
+
+    /**
+     * @param params параметры поиска REST API
+     */
+    public UserSearchQuery(Map<String, String> params) {
+        this.params = params == null ? Collections.emptyMap() : params;
+        this.exact = Boolean.parseBoolean(this.params.get(UserModel.EXACT));
+        this.tokens = tokenize(this.params.get(UserModel.SEARCH));
+    }
+
+    /**
+     * Запрос по строке поиска консоли администратора
+     * @param search список слов, разделенных пробелами
+     */
+    public static UserSearchQuery forSearch(String search) {
+        return new UserSearchQuery(Collections.singletonMap(UserModel.SEARCH, search));
+    }
+
+    /**
+     * @return нормализованная строка поиска (слова в нижнем регистре через пробел), например для ключей кэша
+     */
+    public String getSearchKey() {
+        return String.join(" ", tokens);
+    }
+
+    /**
+     * Разбивает строку поиска на слова в нижнем регистре (слова "*" пропускаются)
+     */
+    public static List<String> tokenize(String search) {
+        if (search == null) return Collections.emptyList();
+        List<String> tokens = new ArrayList<>();
+        for (String token : search.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (token.isEmpty() || token.equals("*")) continue;
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    /**
+     * @param name имя атрибута пользователя
+     * @return имя поля UserEntity для точного поиска по атрибуту или null, если атрибут не хранится в столбце
+     */
+    public static String exactField(String name) {
+        return EXACT_FIELDS.get(name);
+    }
+
+    /**
+     * Запрос пользователей с точным значением атрибута, упорядоченных по (login, id)
+     * @param field поле UserEntity (см. exactField())
+     * @param value значение атрибута
+     */
+    public static TypedQuery<UserEntity> selectByAttribute(EntityManager em, String field, String value) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<UserEntity> query = cb.createQuery(UserEntity.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+        query.select(root)
+                .where(cb.equal(root.get(field), value))
+                .orderBy(cb.asc(root.get("username")), cb.asc(root.get("accountId")));
+        return em.createQuery(query);
+    }
+
+    /**
+     * Запрос количества пользователей с теми же условиями, что и select()
+     */
+    public TypedQuery<Long> count(EntityManager em) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+        query.select(cb.count(root))
+                .where(predicates(cb, root).toArray(new Predicate[0]));
+        return em.createQuery(query);
+    }
+
+    /**
+     * Запрос пользователей, упорядоченных по (login, id), для постраничного чтения
+     */
+    public TypedQuery<UserEntity> select(EntityManager em) {
+        return select(em, null);
+    }
+
+    /**
+     * Запрос пользователей, упорядоченных по (login, id), начиная с позиции после курсора.
+     * Курсор с login ограничивает диапазон индекса (login, id) снизу условием
+     * "login >= :login and (login > :login or id > :id)" и не включает строки без login. Строки без login
+     * читаются отдельно курсором без login (см. PageCursorCache.Cursor.nullLogins()) в порядке id.
+     * @param cursor позиция (login, id) последней прочитанной строки или null - с начала
+     */
+    public TypedQuery<UserEntity> select(EntityManager em, PageCursorCache.Cursor cursor) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<UserEntity> query = cb.createQuery(UserEntity.class);
+        Root<UserEntity> root = query.from(UserEntity.class);
+        List<Predicate> predicates = predicates(cb, root);
+        Path<String> login = root.get("username");
+        Path<Long> accountId = root.get("accountId");
+        if (cursor != null && cursor.isNullLogin()) {
+            predicates.add(cb.isNull(login));
+            predicates.add(cb.greaterThan(accountId, cursor.getAccountId()));
+            query.select(root)
+                    .where(predicates.toArray(new Predicate[0]))
+                    .orderBy(cb.asc(accountId));
+            return em.createQuery(query);
+        }
+        if (cursor != null) {
+            predicates.add(cb.greaterThanOrEqualTo(login, cursor.getLogin()));
+            predicates.add(cb.or(
+                    cb.greaterThan(login, cursor.getLogin()),
+                    cb.greaterThan(accountId, cursor.getAccountId())));
+        }
+        query.select(root)
+                .where(predicates.toArray(new Predicate[0]))
+                .orderBy(cb.asc(login), cb.asc(accountId));
+        return em.createQuery(query);
+    }
+
+    /**
+     * Условия поиска для всех заданных параметров (объединяются через AND)
+     */
+    public List<Predicate> predicates(CriteriaBuilder cb, Root<UserEntity> root) {
+
+        List<Predicate> predicates = new ArrayList<>();
+        params.forEach((name, value) -> {
+            if (value == null) return;
+            if (TEXT_FIELDS.containsKey(name)) {
+                Expression<String> field = cb.lower(root.get(TEXT_FIELDS.get(name)));
+                String lower = value.trim().toLowerCase(Locale.ROOT);
+                predicates.add(exact ? cb.equal(field, lower) : cb.like(field, "%" + escapeLike(lower) + "%", LIKE_ESCAPE));
+            } else if (EXACT_FIELDS.containsKey(name)) {
+                predicates.add(cb.equal(root.get(EXACT_FIELDS.get(name)), value.trim()));
+            } else if (UserModel.ENABLED.equals(name)) {
+                Path<String> status = root.get("status");
+                predicates.add(Boolean.parseBoolean(value)
+                        ? cb.equal(status, STATUS_ACTIVE)
+                        : cb.or(cb.notEqual(status, STATUS_ACTIVE), cb.isNull(status)));
+            } else if (UserModel.SEARCH.equals(name)) {
+                tokens.forEach(token -> predicates.add(tokenPredicate(cb, root, token)));
+            } else if (!UserModel.EXACT.equals(name)) {
+                log.debug(">>>> параметр поиска \"{}\" не поддерживается хранилищем и не учитывается", name);
+            }
+        });
+        return predicates;
+    }
+
+    // слово строки поиска содержится хотя бы в одном из столбцов поиска ("*" в слове - любые символы)
+    private static Predicate tokenPredicate(CriteriaBuilder cb, Root<UserEntity> root, String token) {
+        String pattern = "%" + escapeLike(token).replace('*', '%') + "%";
+        Predicate[] columns = new Predicate[SEARCH_FIELDS.length];
+        for (int i = 0; i < SEARCH_FIELDS.length; i++) {
+            columns[i] = cb.like(cb.lower(root.get(SEARCH_FIELDS[i])), pattern, LIKE_ESCAPE);
+        }
+        return cb.or(columns);
+    }
+
+    /**
+     * Экранирует символы шаблона like (\, %, _), чтобы значение сравнивалось как обычный текст
+     */
+    static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == LIKE_ESCAPE || c == '%' || c == '_') escaped.append(LIKE_ESCAPE);
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+}
@@ -0,0 +1,28 @@
+-- Индексы таблицы privfastsm.accounts, которые использует провайдер хранилища пользователей.
+-- Для ручного выполнения при provisionSchema = false. CREATE INDEX CONCURRENTLY не блокирует запись в таблицу,
+-- но не может выполняться внутри транзакции: выполнять в режиме autocommit (например psql -f без --single-transaction).
+-- Если построение прервано, недействительный индекс нужно удалить (drop index concurrently) и создать заново.
+
+-- lookupIgnoreCase = true: регистронезависимый поиск по login и email
+create index concurrently if not exists accounts_lower_login_idx on privfastsm.accounts (lower(login));
+create index concurrently if not exists accounts_lower_email_idx on privfastsm.accounts (lower(email));
+
+-- pageCursorCacheSize > 0: постраничное чтение по курсору (login, id)
+create index concurrently if not exists accounts_login_id_idx on privfastsm.accounts (login, id);
+
+-- attributeIndexes = true: поиск пользователей по атрибутам
+create index concurrently if not exists accounts_phone_idx on privfastsm.accounts (phone);
+create index concurrently if not exists accounts_department_idx on privfastsm.accounts (department);
+create index concurrently if not exists accounts_position_idx on privfastsm.accounts (position);
+create index concurrently if not exists accounts_ip_idx on privfastsm.accounts (ip);
+create index concurrently if not exists accounts_middle_name_idx on privfastsm.accounts (middle_name);
+
+-- searchIndexes = true или searchMode = trigram: поиск по словам и по сходству
+create extension if not exists pg_trgm;
+create index concurrently if not exists accounts_login_trgm_idx on privfastsm.accounts using gin (lower(login) gin_trgm_ops);
+create index concurrently if not exists accounts_email_trgm_idx on privfastsm.accounts using gin (lower(email) gin_trgm_ops);
+create index concurrently if not exists accounts_first_name_trgm_idx on privfastsm.accounts using gin (lower(first_name) gin_trgm_ops);
+create index concurrently if not exists accounts_last_name_trgm_idx on privfastsm.accounts using gin (lower(last_name) gin_trgm_ops);
+create index concurrently if not exists accounts_middle_name_trgm_idx on privfastsm.accounts using gin (lower(middle_name) gin_trgm_ops);
+create index concurrently if not exists accounts_department_trgm_idx on privfastsm.accounts using gin (lower(department) gin_trgm_ops);
+create index concurrently if not exists accounts_position_trgm_idx on privfastsm.accounts using gin (lower(position) gin_trgm_ops);
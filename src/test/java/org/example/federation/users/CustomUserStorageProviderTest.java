@@ -0,0 +1,242 @@
+package org.example.federation.users;
+
+import org.example.federation.users.cache.DegradedMode;
+import org.example.federation.users.cache.LookupCoalescer;
+import org.example.federation.users.cache.PageCursorCache;
+import org.example.federation.users.cache.UserSnapshotCache;
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.mockito.InOrder;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Запросы провайдера к jdbc хранилищу: менеджер сущностей и фабрика провайдера заменены заглушками,
+ * кэш снимков узла - настоящий
+ */
+class CustomUserStorageProviderTest {
+
+    private static final String COMPONENT_ID = "c1";
+
+    private KeycloakSession session;
+    private EntityManager em;
+    private ComponentModel model;
+    private CustomUserStorageProviderFactory factory;
+    private UserSnapshotCache userCache;
+    private PageCursorCache pageCursors;
+    private RealmModel realm;
+    private CustomUserStorageProvider provider;
+
+    @BeforeEach
+    void setUp() {
+        session = mock(KeycloakSession.class);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        em = mock(EntityManager.class);
+        when(session.getProvider(JpaConnectionProvider.class, "user-store")).thenReturn(connection);
+        when(connection.getEntityManager()).thenReturn(em);
+
+        model = new ComponentModel();
+        model.setId(COMPONENT_ID);
+        userCache = new UserSnapshotCache(100, 60_000, 0, false);
+        factory = mock(CustomUserStorageProviderFactory.class);
+        pageCursors = new PageCursorCache(10, 60_000);
+        when(factory.getUserCache()).thenReturn(userCache);
+        when(factory.getPageCursors()).thenReturn(pageCursors);
+        when(factory.getSearchMinScore()).thenReturn(0.4);
+
+        realm = mock(RealmModel.class);
+        provider = new CustomUserStorageProvider(session, model, factory);
+    }
+
+    @Test
+    void batchLookupLoadsOnlyUncachedUsersInInputOrder() {
+        userCache.put(COMPONENT_ID, UserSnapshot.of(user(2L, "bob")), userCache.generation());
+        TypedQuery<UserEntity> query = usersByIdsQuery();
+        when(query.getResultList()).thenReturn(Arrays.asList(user(3L, "carol"), user(1L, "alice")));
+
+        List<UserModel> users = provider.getUsersByAccountIds(realm, Arrays.asList(1L, 2L, 3L, 4L, 1L));
+
+        assertEquals(Arrays.asList("alice", "bob", "carol", "alice"),
+                users.stream().map(UserModel::getUsername).collect(Collectors.toList()));
+        assertSame(users.get(0), users.get(3));
+        verify(em, times(1)).createNamedQuery("getUsersByIds", UserEntity.class);
+        verify(query).setParameter("ids", Arrays.asList(1L, 3L, 4L));
+    }
+
+    @Test
+    void batchLookupReusesAdaptersLoadedInSession() {
+        TypedQuery<UserEntity> query = usersByIdsQuery();
+        when(query.getResultList()).thenReturn(Collections.singletonList(user(1L, "alice")));
+        UserModel first = provider.getUsersByAccountIds(realm, Collections.singletonList(1L)).get(0);
+
+        UserModel second = provider.getUsersByAccountIds(realm, Collections.singletonList(1L)).get(0);
+
+        assertSame(first, second);
+        verify(em, times(1)).createNamedQuery("getUsersByIds", UserEntity.class);
+    }
+
+    @Test
+    void batchLookupSplitsMissingIdsIntoChunks() {
+        TypedQuery<UserEntity> query = usersByIdsQuery();
+        when(query.getResultList()).thenReturn(Collections.emptyList());
+        List<Long> ids = new ArrayList<>();
+        for (long id = 1; id <= 1200; id++) {
+            ids.add(id);
+        }
+
+        assertEquals(Collections.emptyList(), provider.getUsersByAccountIds(realm, ids));
+        verify(em, times(3)).createNamedQuery("getUsersByIds", UserEntity.class);
+    }
+
+    @Test
+    void batchLookupAcceptsKeycloakIds() {
+        TypedQuery<UserEntity> query = usersByIdsQuery();
+        when(query.getResultList()).thenReturn(Collections.singletonList(user(5L, "eve")));
+        String keycloakId = StorageId.keycloakId(model, "5");
+
+        List<UserModel> users = provider.getUsersByIds(realm, Collections.singletonList(keycloakId));
+
+        assertEquals(keycloakId, users.get(0).getId());
+        verify(query).setParameter("ids", Collections.singletonList(5L));
+    }
+
+    @Test
+    void searchResultIsTheSessionAdapterOfUser() {
+        UserEntity alice = user(1L, "alice");
+        TypedQuery<UserEntity> query = namedQuery("getUsersByIds");
+        when(query.getResultList()).thenReturn(Collections.singletonList(alice));
+
+        UserModel found = provider.searchAdapters(realm, Collections.singletonList(1L)).findFirst().orElse(null);
+
+        assertSame(found, provider.getUserById(realm, StorageId.keycloakId(model, "1")));
+        verify(em).detach(alice);
+        verify(em, never()).find(UserEntity.class, 1L);
+    }
+
+    @Test
+    void searchKeepsEntityOfAdapterLoadedInSession() {
+        TypedQuery<UserEntity> query = usersByIdsQuery();
+        when(query.getResultList()).thenReturn(Collections.singletonList(user(1L, "alice")));
+        UserModel adapter = provider.getUsersByAccountIds(realm, Collections.singletonList(1L)).get(0);
+        // та же строка в результате запроса поиска (сущность могла быть загружена и изменена адаптером)
+        UserEntity searched = user(1L, "alice");
+
+        assertSame(adapter, provider.searchAdapter(realm, searched));
+        verify(em, never()).detach(searched);
+    }
+
+    @Test
+    void similaritySearchSetsThresholdInSameTransactionFirst() {
+        Query threshold = mock(Query.class, RETURNS_SELF);
+        Query search = mock(Query.class, RETURNS_SELF);
+        when(em.createNativeQuery(startsWith("select set_config"))).thenReturn(threshold);
+        when(em.createNativeQuery(anyString(), eq(UserEntity.class))).thenReturn(search);
+        when(search.getResultList()).thenReturn(Collections.emptyList());
+
+        provider.findUsersBySimilarity("Ivan Petrov", 20, 10);
+
+        InOrder order = inOrder(em, threshold);
+        order.verify(em).createNativeQuery(startsWith("select set_config('pg_trgm.word_similarity_threshold'"));
+        order.verify(threshold).setParameter("threshold", "0.4");
+        order.verify(threshold).getSingleResult();
+        order.verify(em).createNativeQuery(anyString(), eq(UserEntity.class));
+        verify(search).setParameter("search", "ivan petrov");
+        verify(search).setParameter("minScore", 0.4);
+        verify(search).setFirstResult(20);
+        verify(search).setMaxResults(10);
+    }
+
+    @Test
+    void pageAfterLastLoginIsFilledWithNullLoginsById() {
+        pageCursors.put(COMPONENT_ID + "|getAllUsers", 2, new PageCursorCache.Cursor("bob", 5L));
+        TypedQuery<UserEntity> afterLogin = namedQuery("getAllUsersAfter");
+        TypedQuery<UserEntity> nullLogins = namedQuery("getAllUsersWithoutLoginAfter");
+        when(afterLogin.getResultList()).thenReturn(Collections.singletonList(user(6L, "carol")));
+        when(nullLogins.getResultList()).thenReturn(Collections.singletonList(user(2L, null)));
+
+        List<UserEntity> page = provider.findAllUsers(2, 2);
+
+        assertEquals(Arrays.asList(6L, 2L), page.stream().map(UserEntity::getAccountId).collect(Collectors.toList()));
+        verify(afterLogin).setParameter("login", "bob");
+        verify(afterLogin).setParameter("id", 5L);
+        verify(nullLogins).setParameter("id", Long.MIN_VALUE);
+        verify(nullLogins).setMaxResults(1);
+        // следующая страница продолжает строки без login после последней прочитанной
+        PageCursorCache.Cursor next = pageCursors.get(COMPONENT_ID + "|getAllUsers", 4);
+        assertNull(next.getLogin());
+        assertEquals(2L, next.getAccountId());
+    }
+
+    @Test
+    void ignoreCaseLookupOfCachedUserReportsDuplicateInStore() {
+        UserSnapshotCache ignoreCaseCache = new UserSnapshotCache(100, 60_000, 0, true);
+        when(factory.isLookupIgnoreCase()).thenReturn(true);
+        when(factory.getUserCache()).thenReturn(ignoreCaseCache);
+        when(factory.getLookupCoalescer()).thenReturn(new LookupCoalescer<>(5_000));
+        when(factory.getDegradedMode()).thenReturn(new DegradedMode(false, 1_000, 1, 1));
+        CustomUserStorageProvider ignoreCaseProvider = new CustomUserStorageProvider(session, model, factory);
+        TypedQuery<UserEntity> query = namedQuery("getUserByUsernameIgnoreCase");
+        UserEntity alice = user(1L, "Alice");
+        when(query.getResultList()).thenReturn(Collections.singletonList(alice),
+                Arrays.asList(alice, user(2L, "alice")));
+        assertEquals("Alice", ignoreCaseProvider.getUserByUsername(realm, "Alice").getUsername());
+
+        // в хранилище появился пользователь alice: загруженный Alice (в сессии и в кэше узла) не скрывает его
+        assertThrows(ModelDuplicateException.class, () -> ignoreCaseProvider.getUserByUsername(realm, "alice"));
+        verify(query, times(2)).setParameter("username", "alice");
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypedQuery<UserEntity> namedQuery(String name) {
+        TypedQuery<UserEntity> query = mock(TypedQuery.class, RETURNS_SELF);
+        when(em.createNamedQuery(name, UserEntity.class)).thenReturn(query);
+        return query;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypedQuery<UserEntity> usersByIdsQuery() {
+        TypedQuery<UserEntity> query = mock(TypedQuery.class);
+        when(em.createNamedQuery("getUsersByIds", UserEntity.class)).thenReturn(query);
+        return query;
+    }
+
+    private static UserEntity user(Long accountId, String username) {
+        UserEntity user = new UserEntity();
+        user.setAccountId(accountId);
+        user.setUsername(username);
+        user.setEmail(username + "@example.org");
+        return user;
+    }
+
+}
@@ -0,0 +1,96 @@
+package org.example.federation.users;
+
+import org.example.federation.users.cache.RoleCatalogue;
+import org.example.federation.users.model.RoleSnapshot;
+import org.example.federation.users.model.UserRoleEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Поиск ролей для назначения пользователю: роли каталога - ссылкой по id без чтения записи,
+ * остальные - запросом по названию
+ */
+class RoleStorageTest {
+
+    private EntityManager em;
+    private RoleCatalogue catalogue;
+    private RoleStorage roleStorage;
+
+    @BeforeEach
+    void setUp() {
+        KeycloakSession session = mock(KeycloakSession.class);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        em = mock(EntityManager.class);
+        when(session.getContext()).thenReturn(mock(KeycloakContext.class));
+        when(session.getProvider(JpaConnectionProvider.class, "user-store")).thenReturn(connection);
+        when(connection.getEntityManager()).thenReturn(em);
+        catalogue = new RoleCatalogue(60_000);
+        roleStorage = new RoleStorage(session, new ComponentModel(), catalogue);
+    }
+
+    @Test
+    void catalogueRoleIsReferencedWithoutReading() {
+        catalogue.load(Collections.singletonList(RoleSnapshot.of(role(7L, "admin"))), catalogue.generation());
+        UserRoleEntity reference = new UserRoleEntity();
+        when(em.getReference(UserRoleEntity.class, 7L)).thenReturn(reference);
+
+        assertSame(reference, roleStorage.getRoleReference("admin"));
+        verify(em, never()).find(any(), any());
+        verify(em, never()).createNamedQuery(anyString(), any());
+    }
+
+    @Test
+    void roleMissingFromCatalogueIsReadByName() {
+        catalogue.load(Collections.emptyList(), catalogue.generation());
+        UserRoleEntity admin = role(7L, "admin");
+        TypedQuery<UserRoleEntity> query = roleByNameQuery();
+        when(query.getResultList()).thenReturn(Collections.singletonList(admin));
+
+        assertSame(admin, roleStorage.getRoleReference("admin"));
+        verify(query).setParameter("name", "admin");
+        verify(em, never()).getReference(any(), any());
+    }
+
+    @Test
+    void removePathAlwaysReadsRole() {
+        catalogue.load(Collections.singletonList(RoleSnapshot.of(role(7L, "admin"))), catalogue.generation());
+        TypedQuery<UserRoleEntity> query = roleByNameQuery();
+        when(query.getResultList()).thenReturn(Collections.emptyList());
+
+        assertNull(roleStorage.findRoleByName("admin"));
+        verify(em, never()).getReference(any(), any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypedQuery<UserRoleEntity> roleByNameQuery() {
+        TypedQuery<UserRoleEntity> query = mock(TypedQuery.class, RETURNS_SELF);
+        when(em.createNamedQuery("getRoleByName", UserRoleEntity.class)).thenReturn(query);
+        return query;
+    }
+
+    private static UserRoleEntity role(Long roleId, String name) {
+        UserRoleEntity role = new UserRoleEntity();
+        role.setRoleId(roleId);
+        role.setName(name);
+        return role;
+    }
+
+}
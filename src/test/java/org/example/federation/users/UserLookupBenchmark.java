@@ -0,0 +1,146 @@
+package org.example.federation.users;
+
+import org.example.federation.users.cache.DegradedMode;
+import org.example.federation.users.cache.LookupCoalescer;
+import org.example.federation.users.cache.UserSnapshotCache;
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserRightsEntity;
+import org.example.federation.users.model.UserRoleEntity;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Загрузка пользователей по списку id: пакетная загрузка getUsersByAccountIds() (запросы "id in (...)" порциями
+ * по BATCH_SIZE) и прежний цикл getUserById() по каждому id. Хранилище - H2 в памяти с 10000 пользователями,
+ * кэш узла отключен, каждый вызов выполняется в новой сессии провайдера с пустым контекстом хранения.
+ * Время H2 в памяти не включает сетевую задержку, поэтому на Postgres разница больше. Запуск:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main \
+ *     -Dexec.args=UserLookupBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserLookupBenchmark {
+
+    private static final int USERS = 10_000;
+
+    @Param({"10", "100", "1000"})
+    public int ids;
+
+    private SessionFactory sessionFactory;
+    private EntityManager em;
+    private KeycloakSession session;
+    private ComponentModel model;
+    private CustomUserStorageProviderFactory factory;
+    private RealmModel realm;
+    private List<Long> accountIds;
+    private List<String> keycloakIds;
+    private CustomUserStorageProvider provider;
+
+    @Setup
+    public void startDatabase() {
+        sessionFactory = new Configuration()
+                .addAnnotatedClass(UserEntity.class)
+                .addAnnotatedClass(UserRoleEntity.class)
+                .addAnnotatedClass(UserRightsEntity.class)
+                .setProperty(AvailableSettings.URL,
+                        "jdbc:h2:mem:lookup;DB_CLOSE_DELAY=-1;INIT=create schema if not exists \"privfastsm\"")
+                .setProperty(AvailableSettings.DIALECT, "org.hibernate.dialect.H2Dialect")
+                .setProperty(AvailableSettings.GLOBALLY_QUOTED_IDENTIFIERS, "true")
+                .setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop")
+                .buildSessionFactory();
+        em = sessionFactory.createEntityManager();
+        List<Long> stored = new ArrayList<>();
+        em.getTransaction().begin();
+        for (int i = 0; i < USERS; i++) {
+            UserEntity user = new UserEntity();
+            user.setUsername("user" + i);
+            user.setEmail("user" + i + "@example.org");
+            em.persist(user);
+            stored.add(user.getAccountId());
+        }
+        em.getTransaction().commit();
+
+        session = mock(KeycloakSession.class);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        when(session.getProvider(JpaConnectionProvider.class, "user-store")).thenReturn(connection);
+        when(connection.getEntityManager()).thenReturn(em);
+        model = new ComponentModel();
+        model.setId("c1");
+        factory = mock(CustomUserStorageProviderFactory.class);
+        when(factory.getUserCache()).thenReturn(new UserSnapshotCache(0, 0, 0, false));
+        when(factory.getLookupCoalescer()).thenReturn(new LookupCoalescer<>(5_000));
+        when(factory.getDegradedMode()).thenReturn(new DegradedMode(false, 1_000, 1, 1));
+        realm = mock(RealmModel.class);
+
+        accountIds = new ArrayList<>();
+        keycloakIds = new ArrayList<>();
+        for (int i = 0; i < ids; i++) {
+            Long accountId = stored.get(ThreadLocalRandom.current().nextInt(USERS));
+            accountIds.add(accountId);
+            keycloakIds.add(StorageId.keycloakId(model, String.valueOf(accountId)));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newSession() {
+        em.clear();
+        provider = new CustomUserStorageProvider(session, model, factory);
+    }
+
+    @TearDown
+    public void stopDatabase() {
+        em.close();
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public List<UserModel> batchLoad() {
+        return provider.getUsersByAccountIds(realm, accountIds);
+    }
+
+    @Benchmark
+    public List<UserModel> perIdLoop() {
+        List<UserModel> users = new ArrayList<>();
+        for (String id : keycloakIds) {
+            UserModel user = provider.getUserById(realm, id);
+            if (user != null) users.add(user);
+        }
+        return users;
+    }
+
+}
@@ -0,0 +1,178 @@
+package org.example.federation.users;
+
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserRightsEntity;
+import org.example.federation.users.model.UserRoleEntity;
+import org.example.federation.users.schema.UserStoreIndexes;
+import org.example.federation.users.schema.UserStoreSchema;
+import org.example.federation.users.search.UserSearchQuery;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Поиск пользователей на 1 000 000 записей privfastsm.accounts локального Postgres (расширение pg_trgm):
+ * <ul>
+ * <li>similarity - режим trigram: отбор оператором {@code <%} по триграммным GIN индексам и ранжирование
+ * по word_similarity (findUsersBySimilarity)</li>
+ * <li>wordLike - режим like: "lower(столбец) like '%слово%'" по полям поиска (UserSearchQuery)</li>
+ * <li>legacyLike - прежний запрос searchForUser "lower(login) like '%x%' or email like '%x%'",
+ * условие по email без lower() индексом не обслуживается, поэтому таблица читается полностью</li>
+ * </ul>
+ * Каждый запрос возвращает первую страницу из 20 пользователей в отдельной транзакции.
+ * Недостающие строки (login benchN), расширение и триграммные индексы создаются при первом запуске,
+ * поэтому база должна быть тестовой. Запуск:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main \
+ *     -Dexec.args="UserSearchBenchmark -jvmArgs -Dprivfastsm.test.url=jdbc:postgresql://localhost/test"
+ * </pre>
+ * (-Dprivfastsm.test.user, -Dprivfastsm.test.password - как в StoreChangeWatcherPostgresTest)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UserSearchBenchmark {
+
+    private static final int USERS = 1_000_000;
+    private static final int PAGE = 20;
+    // searchMinScore по умолчанию
+    private static final double MIN_SCORE = 0.3;
+
+    private static final String POPULATE_SQL = "insert into privfastsm.accounts " +
+            "(login, email, last_name, first_name, middle_name, status) " +
+            "select 'bench' || g, 'bench' || g || '@example.org', " +
+            "(array['Ivanov','Petrov','Sidorov','Smirnov','Kuznetsov','Popov','Volkov','Sokolov'])[1 + g % 8] || (g % 1000), " +
+            "(array['Ivan','Petr','Sergey','Anna','Maria','Olga','Pavel','Elena'])[1 + g / 8 % 8], " +
+            "(array['Ivanovich','Petrovich','Sergeevich','Pavlovich'])[1 + g / 64 % 4], 'ACTIVE' " +
+            "from generate_series(?, ?) g";
+
+    @Param({"bench123456", "ivanov17", "petr"})
+    public String search;
+
+    private final String url = System.getProperty("privfastsm.test.url");
+    private final String user = System.getProperty("privfastsm.test.user", "postgres");
+    private final String password = System.getProperty("privfastsm.test.password", "postgres");
+
+    private SessionFactory sessionFactory;
+    private EntityManager em;
+    private CustomUserStorageProvider provider;
+
+    @Setup
+    public void startDatabase() throws SQLException {
+        if (url == null) {
+            throw new IllegalStateException("не задан jdbc адрес тестовой базы -Dprivfastsm.test.url");
+        }
+        sessionFactory = new Configuration()
+                .addAnnotatedClass(UserEntity.class)
+                .addAnnotatedClass(UserRoleEntity.class)
+                .addAnnotatedClass(UserRightsEntity.class)
+                .setProperty(AvailableSettings.URL, url)
+                .setProperty(AvailableSettings.USER, user)
+                .setProperty(AvailableSettings.PASS, password)
+                .setProperty(AvailableSettings.DIALECT, "org.hibernate.dialect.PostgreSQL10Dialect")
+                .setProperty(AvailableSettings.HBM2DDL_AUTO, "update")
+                .setProperty(AvailableSettings.HBM2DDL_CREATE_SCHEMAS, "true")
+                .buildSessionFactory();
+        populate();
+        new UserStoreSchema(url, user, password, true).ensureTrigramExtension();
+        new UserStoreIndexes(url, user, password, true).ensureTrigramIndexes();
+
+        em = sessionFactory.createEntityManager();
+        KeycloakSession session = mock(KeycloakSession.class);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        when(session.getProvider(JpaConnectionProvider.class, "user-store")).thenReturn(connection);
+        when(connection.getEntityManager()).thenReturn(em);
+        CustomUserStorageProviderFactory factory = mock(CustomUserStorageProviderFactory.class);
+        when(factory.isTrigramSearch()).thenReturn(true);
+        when(factory.getSearchMinScore()).thenReturn(MIN_SCORE);
+        provider = new CustomUserStorageProvider(session, new ComponentModel(), factory);
+    }
+
+    private void populate() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, user, password);
+             Statement statement = connection.createStatement()) {
+            int stored;
+            try (ResultSet rs = statement.executeQuery("select count(*) from privfastsm.accounts")) {
+                rs.next();
+                stored = rs.getInt(1);
+            }
+            if (stored < USERS) {
+                try (PreparedStatement insert = connection.prepareStatement(POPULATE_SQL)) {
+                    insert.setInt(1, stored + 1);
+                    insert.setInt(2, USERS);
+                    insert.executeUpdate();
+                }
+            }
+            statement.execute("analyze privfastsm.accounts");
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void begin() {
+        em.clear();
+        em.getTransaction().begin();
+    }
+
+    @TearDown(Level.Invocation)
+    public void rollback() {
+        em.getTransaction().rollback();
+    }
+
+    @TearDown
+    public void stopDatabase() {
+        em.close();
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public List<UserEntity> similarity() {
+        return provider.findUsersBySimilarity(search, 0, PAGE);
+    }
+
+    @Benchmark
+    public List<UserEntity> wordLike() {
+        return UserSearchQuery.forSearch(search).select(em).setMaxResults(PAGE).getResultList();
+    }
+
+    @Benchmark
+    public List<UserEntity> legacyLike() {
+        return em.createQuery("select u from UserEntity u where lower(u.username) like :search " +
+                        "or u.email like :search order by u.username", UserEntity.class)
+                .setParameter("search", "%" + search.toLowerCase() + "%")
+                .setMaxResults(PAGE)
+                .getResultList();
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.example.federation.users.adapter;
+
+import org.example.federation.users.model.UserRoleEntity;
+import org.keycloak.models.RoleModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сопоставление ролей пользователя (UserAdapter.reconcileRoleMappings) для 10, 100 и 1000 ролей:
+ * <ul>
+ * <li>unmappedRoles - поиск несопоставленных ролей хранилища по индексу названий назначенных ролей</li>
+ * <li>linearScan - прежний поиск: для каждой роли хранилища просмотр всех назначенных ролей</li>
+ * <li>fingerprint - отпечаток набора id ролей, при совпадении которого сопоставление не выполняется</li>
+ * </ul>
+ * У пользователя назначены все роли хранилища, кроме одной. Запуск:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main \
+ *     -Dexec.args=RoleMappingBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleMappingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int roles;
+
+    private Set<RoleModel> mappings;
+    private List<UserRoleEntity> storageRoles;
+    private List<Long> roleIds;
+
+    @Setup
+    public void setUp() {
+        mappings = new HashSet<>();
+        storageRoles = new ArrayList<>();
+        roleIds = new ArrayList<>();
+        for (long id = 1; id <= roles; id++) {
+            UserRoleEntity role = new UserRoleEntity();
+            role.setRoleId(id);
+            role.setName("role-" + id);
+            storageRoles.add(role);
+            roleIds.add(id);
+            if (id < roles) {
+                mappings.add(new UserRoleAdapter(null, null, null, role));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<UserRoleEntity> unmappedRoles() {
+        return UserAdapter.unmappedRoles(mappings, storageRoles);
+    }
+
+    @Benchmark
+    public List<UserRoleEntity> linearScan() {
+        List<UserRoleEntity> unmapped = new ArrayList<>();
+        for (UserRoleEntity userRole : storageRoles) {
+            if (mappings.stream().noneMatch(role -> role.getName().equals(userRole.getName()))) {
+                unmapped.add(userRole);
+            }
+        }
+        return unmapped;
+    }
+
+    @Benchmark
+    public String fingerprint() {
+        return UserAdapter.rolesFingerprint(roleIds);
+    }
+
+}
@@ -0,0 +1,181 @@
+package org.example.federation.users.adapter;
+
+import org.example.federation.users.CustomUserStorageProvider;
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserRightsEntity;
+import org.example.federation.users.model.UserRoleEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Загрузка ролей пользователя (число sql команд на базе H2) и отпечаток набора ролей, по которому пропускается
+ * повторное сопоставление ролей
+ */
+class UserAdapterTest {
+
+    private static SessionFactory sessionFactory;
+    private static Statistics statistics;
+
+    private EntityManager em;
+    private Long accountId;
+
+    @BeforeAll
+    static void startDatabase() {
+        // число sql команд считается статистикой Hibernate на базе H2 в памяти
+        sessionFactory = new Configuration()
+                .addAnnotatedClass(UserEntity.class)
+                .addAnnotatedClass(UserRoleEntity.class)
+                .addAnnotatedClass(UserRightsEntity.class)
+                .setProperty(AvailableSettings.URL,
+                        "jdbc:h2:mem:roles;DB_CLOSE_DELAY=-1;INIT=create schema if not exists \"privfastsm\"")
+                .setProperty(AvailableSettings.DIALECT, "org.hibernate.dialect.H2Dialect")
+                .setProperty(AvailableSettings.GLOBALLY_QUOTED_IDENTIFIERS, "true")
+                .setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop")
+                .setProperty(AvailableSettings.GENERATE_STATISTICS, "true")
+                .buildSessionFactory();
+        statistics = sessionFactory.getStatistics();
+    }
+
+    @AfterAll
+    static void stopDatabase() {
+        sessionFactory.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        em = sessionFactory.createEntityManager();
+        em.getTransaction().begin();
+        UserEntity user = new UserEntity();
+        user.setUsername("alice-" + System.nanoTime());
+        user.addUserRole(role("admin", "users", "roles"));
+        user.addUserRole(role("auditor", "journal", "reports"));
+        em.persist(user);
+        em.getTransaction().commit();
+        accountId = user.getAccountId();
+        em.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        em.close();
+    }
+
+    @Test
+    void fingerprintIgnoresOrder() {
+        assertEquals(UserAdapter.rolesFingerprint(Arrays.asList(3L, 1L, 2L)),
+                UserAdapter.rolesFingerprint(Arrays.asList(1L, 2L, 3L)));
+    }
+
+    @Test
+    void fingerprintHasCountAndHexHash() {
+        assertTrue(UserAdapter.rolesFingerprint(Arrays.asList(10L, 20L)).matches("2:[0-9a-f]{1,16}"));
+        assertTrue(UserAdapter.rolesFingerprint(Collections.emptyList()).startsWith("0:"));
+    }
+
+    @Test
+    void fingerprintChangesWithRoleSet() {
+        String fingerprint = UserAdapter.rolesFingerprint(Arrays.asList(1L, 2L));
+
+        assertNotEquals(fingerprint, UserAdapter.rolesFingerprint(Arrays.asList(1L, 3L)));
+        assertNotEquals(fingerprint, UserAdapter.rolesFingerprint(Collections.singletonList(1L)));
+        assertNotEquals(fingerprint, UserAdapter.rolesFingerprint(Arrays.asList(1L, 2L, 256L)));
+    }
+
+    @Test
+    void unmappedRolesSkipRealmMappingsButNotClientRoles() {
+        RoleModel admin = mock(RoleModel.class);
+        when(admin.getName()).thenReturn("admin");
+        RoleModel clientAuditor = mock(RoleModel.class);
+        when(clientAuditor.getName()).thenReturn("auditor");
+        when(clientAuditor.isClientRole()).thenReturn(true);
+        UserRoleEntity auditor = role("auditor");
+
+        List<UserRoleEntity> unmapped = UserAdapter.unmappedRoles(Arrays.asList(admin, clientAuditor),
+                Arrays.asList(role("admin"), auditor, role("auditor")));
+
+        assertEquals(Collections.singletonList(auditor), unmapped);
+    }
+
+    @Test
+    void rolesAndRightsAreLoadedWithOneStatement() {
+        UserAdapter adapter = adapter();
+
+        UserEntity entity = adapter.getEntityWithRoles();
+        List<String> rights = new ArrayList<>();
+        entity.getRoleList().forEach(role -> role.getRightsList().forEach(right -> rights.add(right.getKeyName())));
+        // id ролей берутся из уже загруженной сущности без отдельного запроса
+        List<Long> roleIds = adapter.getStorageRoleIds();
+
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(2, roleIds.size());
+        assertEquals(4, rights.size());
+        assertSame(entity, adapter.getEntityWithRoles());
+        assertEquals(1, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    void roleIdsAreReadWithoutLoadingRoles() {
+        UserAdapter adapter = adapter();
+
+        assertEquals(2, adapter.getStorageRoleIds().size());
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    // адаптер пользователя из снимка, контекст сессии и статистика очищены
+    private UserAdapter adapter() {
+        UserSnapshot snapshot = UserSnapshot.of(em.find(UserEntity.class, accountId));
+        em.clear();
+        statistics.clear();
+        return new UserAdapter(provider(em), mock(RealmModel.class), snapshot);
+    }
+
+    private static CustomUserStorageProvider provider(EntityManager em) {
+        ComponentModel model = new ComponentModel();
+        model.setId("c1");
+        CustomUserStorageProvider provider = mock(CustomUserStorageProvider.class);
+        when(provider.getSession()).thenReturn(mock(KeycloakSession.class));
+        when(provider.getModel()).thenReturn(model);
+        when(provider.getEntityManager()).thenReturn(em);
+        return provider;
+    }
+
+    private static UserRoleEntity role(String name, String... rights) {
+        UserRoleEntity role = new UserRoleEntity();
+        role.setName(name);
+        for (String key : rights) {
+            UserRightsEntity right = new UserRightsEntity();
+            right.setKeyName(key);
+            right.setValueName("all");
+            right.setRoleEntity(role);
+            role.getRightsList().add(right);
+        }
+        return role;
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.example.federation.users.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ответы фильтра Блума: до построения фильтр пропускает все значения, после построения не дает
+ * ложноотрицательных ответов и отсекает отсутствующие значения
+ */
+class BloomFilterTest {
+
+    @Test
+    void notReadyFilterAllowsEverything() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.put("alice");
+
+        assertTrue(filter.mightContain("bob"));
+        assertEquals(0, filter.getChecks());
+    }
+
+    @Test
+    void readyFilterHasNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put("user" + i);
+            filter.put("user" + i + "@example.org");
+        }
+        filter.setReady(true);
+
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("user" + i));
+            assertTrue(filter.mightContain("user" + i + "@example.org"));
+        }
+        assertEquals(0, filter.getRejected());
+    }
+
+    @Test
+    void valuesAreCaseInsensitive() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.put("Alice@Example.ORG");
+        filter.setReady(true);
+
+        assertTrue(filter.mightContain("alice@example.org"));
+        assertTrue(filter.mightContain("ALICE@EXAMPLE.ORG"));
+    }
+
+    @Test
+    void absentValuesAreMostlyRejected() {
+        BloomFilter filter = new BloomFilter(1_000, 0.01);
+        for (int i = 0; i < 1_000; i++) {
+            filter.put("user" + i);
+        }
+        filter.setReady(true);
+
+        int passed = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (filter.mightContain("absent" + i)) passed++;
+        }
+        // допустимая доля 1%, запас на разброс хэшей
+        assertTrue(passed < 500, "ложноположительных ответов: " + passed);
+        assertEquals(10_000 - passed, filter.getRejected());
+    }
+
+    @Test
+    void nullValueIsIgnored() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.put(null);
+        filter.setReady(true);
+
+        assertTrue(filter.mightContain(null));
+        assertFalse(filter.getFillRatio() > 0);
+    }
+
+    @Test
+    void falsePositivesAreCountedOnlyWhenReady() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.falsePositive();
+        assertEquals(0, filter.getFalsePositives());
+
+        filter.setReady(true);
+        filter.put("alice");
+        filter.mightContain("alice");
+        filter.falsePositive();
+        assertEquals(1, filter.getFalsePositives());
+        assertEquals(1.0, filter.getFalsePositiveRate());
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.example.federation.users.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Объединение одновременных загрузок одного ключа: загрузка выполняется один раз, а при ошибке или истечении
+ * времени ожидания ожидающий поток загружает значение сам
+ */
+class LookupCoalescerTest {
+
+    @Test
+    void concurrentLoadsOfSameKeyRunLoaderOnce() throws Exception {
+        LookupCoalescer<String> coalescer = new LookupCoalescer<>(5_000);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = threads.submit(() -> coalescer.load("c1:alice", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "alice";
+            }));
+            started.await(5, TimeUnit.SECONDS);
+
+            List<Future<String>> waiters = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                waiters.add(threads.submit(() -> coalescer.load("c1:alice", () -> {
+                    calls.incrementAndGet();
+                    return "other";
+                })));
+            }
+            // ожидающие потоки должны успеть встать в очередь за первой загрузкой
+            while (coalescer.getCoalesced() < 3) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            assertEquals("alice", first.get(5, TimeUnit.SECONDS));
+            for (Future<String> waiter : waiters) {
+                assertEquals("alice", waiter.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+            assertEquals(1, coalescer.getExecuted());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    void waiterReloadsWhenFirstLoadFails() throws Exception {
+        LookupCoalescer<String> coalescer = new LookupCoalescer<>(5_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = threads.submit(() -> coalescer.load("c1:bob", () -> {
+                started.countDown();
+                await(release);
+                throw new IllegalStateException("jdbc недоступен");
+            }));
+            started.await(5, TimeUnit.SECONDS);
+            Future<String> waiter = threads.submit(() -> coalescer.load("c1:bob", () -> "bob"));
+            while (coalescer.getCoalesced() < 1) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            assertEquals("bob", waiter.get(5, TimeUnit.SECONDS));
+            assertThrows(Exception.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertEquals(2, coalescer.getExecuted());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    void waiterReloadsAfterTimeout() throws Exception {
+        LookupCoalescer<String> coalescer = new LookupCoalescer<>(10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        try {
+            threads.submit(() -> coalescer.load("c1:carol", () -> {
+                started.countDown();
+                await(release);
+                return "slow";
+            }));
+            started.await(5, TimeUnit.SECONDS);
+
+            assertEquals("fast", coalescer.load("c1:carol", () -> "fast"));
+            assertEquals(1, coalescer.getTimeouts());
+        } finally {
+            release.countDown();
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    void sequentialLoadsAreNotCoalesced() {
+        LookupCoalescer<String> coalescer = new LookupCoalescer<>(1_000);
+
+        assertNull(coalescer.load("c1:dave", () -> null));
+        assertEquals("dave", coalescer.load("c1:dave", () -> "dave"));
+        assertEquals(2, coalescer.getExecuted());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
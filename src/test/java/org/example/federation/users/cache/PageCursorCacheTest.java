@@ -0,0 +1,71 @@
+package org.example.federation.users.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Хранение курсоров страниц: по ключу запроса и сдвигу, с истечением TTL, вытеснением и сбросом по компоненту
+ */
+class PageCursorCacheTest {
+
+    @Test
+    void cursorIsStoredByQueryAndOffset() {
+        PageCursorCache cache = new PageCursorCache(10, 60_000);
+        cache.put("c1|all", 20, new PageCursorCache.Cursor("bob", 5L));
+
+        PageCursorCache.Cursor cursor = cache.get("c1|all", 20);
+        assertEquals("bob", cursor.getLogin());
+        assertEquals(5L, cursor.getAccountId());
+        assertNull(cache.get("c1|all", 40));
+        assertNull(cache.get("c1|search foo", 20));
+    }
+
+    @Test
+    void expiredCursorIsDropped() throws InterruptedException {
+        PageCursorCache cache = new PageCursorCache(10, 1);
+        cache.put("c1|all", 20, new PageCursorCache.Cursor("bob", 5L));
+        Thread.sleep(20);
+
+        assertNull(cache.get("c1|all", 20));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void leastRecentlyUsedCursorIsEvicted() {
+        PageCursorCache cache = new PageCursorCache(2, 60_000);
+        cache.put("c1|all", 20, new PageCursorCache.Cursor("a", 1L));
+        cache.put("c1|all", 40, new PageCursorCache.Cursor("b", 2L));
+        cache.get("c1|all", 20);
+        cache.put("c1|all", 60, new PageCursorCache.Cursor("c", 3L));
+
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.get("c1|all", 20).getLogin());
+        assertNull(cache.get("c1|all", 40));
+    }
+
+    @Test
+    void clearByComponentKeepsOtherComponents() {
+        PageCursorCache cache = new PageCursorCache(10, 60_000);
+        cache.put("c1|all", 20, new PageCursorCache.Cursor("a", 1L));
+        cache.put("c10|all", 20, new PageCursorCache.Cursor("b", 2L));
+
+        cache.clear("c1");
+
+        assertNull(cache.get("c1|all", 20));
+        assertEquals("b", cache.get("c10|all", 20).getLogin());
+    }
+
+    @Test
+    void zeroSizeDisablesCache() {
+        PageCursorCache cache = new PageCursorCache(0, 60_000);
+        cache.put("c1|all", 20, new PageCursorCache.Cursor("a", 1L));
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get("c1|all", 20));
+        assertEquals(0, cache.size());
+    }
+
+}
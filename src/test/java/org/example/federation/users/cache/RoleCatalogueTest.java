@@ -0,0 +1,94 @@
+package org.example.federation.users.cache;
+
+import org.example.federation.users.model.RoleSnapshot;
+import org.example.federation.users.model.UserRightsEntity;
+import org.example.federation.users.model.UserRoleEntity;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Каталог ролей: полная загрузка с проверкой поколения, обновление и удаление отдельных ролей, поиск по названию
+ */
+class RoleCatalogueTest {
+
+    @Test
+    void loadPublishesRolesByIdAndName() {
+        RoleCatalogue catalogue = new RoleCatalogue(60_000);
+        RoleSnapshot admin = role(1L, "admin", "read", "all");
+
+        assertTrue(catalogue.load(Arrays.asList(admin, role(2L, "user")), catalogue.generation()));
+
+        assertTrue(catalogue.isLoaded());
+        assertEquals(2, catalogue.size());
+        assertSame(admin, catalogue.get(1L));
+        assertSame(admin, catalogue.get("admin"));
+        assertNull(catalogue.get("Admin"));
+        assertEquals("read", catalogue.get("admin").getRights().get(0).getKeyName());
+        assertEquals("all", catalogue.get("admin").getRights().get(0).getValueName());
+    }
+
+    @Test
+    void staleLoadDoesNotRestoreRemovedRole() {
+        RoleCatalogue catalogue = new RoleCatalogue(60_000);
+        long generation = catalogue.generation();
+        // роль удалена, пока полная загрузка читала роли
+        catalogue.remove(1L);
+
+        assertFalse(catalogue.load(Collections.singletonList(role(1L, "admin")), generation));
+        assertFalse(catalogue.isLoaded());
+        assertNull(catalogue.get(1L));
+    }
+
+    @Test
+    void renamedRoleIsFoundOnlyByNewName() {
+        RoleCatalogue catalogue = new RoleCatalogue(60_000);
+        catalogue.load(Collections.singletonList(role(1L, "admin")), catalogue.generation());
+
+        catalogue.put(role(1L, "administrator"));
+
+        assertNull(catalogue.get("admin"));
+        assertEquals(1L, catalogue.get("administrator").getRoleId());
+        assertEquals(1, catalogue.size());
+    }
+
+    @Test
+    void updateReplacesFoundRolesAndRemovesMissingOnes() {
+        RoleCatalogue catalogue = new RoleCatalogue(60_000);
+        catalogue.load(Arrays.asList(role(1L, "admin"), role(2L, "user"), role(3L, "guest")), catalogue.generation());
+
+        catalogue.update(Arrays.asList(1L, 2L), Collections.singletonList(role(2L, "user", "profile", "own")));
+
+        assertNull(catalogue.get(1L));
+        assertNull(catalogue.get("admin"));
+        assertEquals(1, catalogue.get("user").getRights().size());
+        assertEquals("guest", catalogue.get(3L).getName());
+    }
+
+    @Test
+    void nonPositiveIntervalDisablesCatalogue() {
+        assertFalse(new RoleCatalogue(0).isEnabled());
+        assertTrue(new RoleCatalogue(1).isEnabled());
+    }
+
+    private static RoleSnapshot role(Long id, String name, String... rights) {
+        UserRoleEntity entity = new UserRoleEntity();
+        entity.setRoleId(id);
+        entity.setName(name);
+        for (int i = 0; i + 1 < rights.length; i += 2) {
+            UserRightsEntity right = new UserRightsEntity();
+            right.setKeyName(rights[i]);
+            right.setValueName(rights[i + 1]);
+            entity.getRightsList().add(right);
+        }
+        return RoleSnapshot.of(entity);
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.example.federation.users.cache;
+
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.example.federation.users.schema.UserStoreSchema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Наблюдение за изменениями на локальном Postgres: триггер схемы -> NOTIFY -> сброс снимка в кэше узла,
+ * чтение журнала privfastsm.account_changes после последнего прочитанного id.
+ * Выполняется только с параметрами -Dprivfastsm.test.url=jdbc:postgresql://localhost/test
+ * (-Dprivfastsm.test.user, -Dprivfastsm.test.password) и только на пустой тестовой базе:
+ * недостающие таблицы схемы privfastsm создаются в минимальном виде.
+ */
+@EnabledIfSystemProperty(named = "privfastsm.test.url", matches = ".+")
+class StoreChangeWatcherPostgresTest {
+
+    private static final String COMPONENT_ID = "c1";
+
+    private final String url = System.getProperty("privfastsm.test.url");
+    private final String user = System.getProperty("privfastsm.test.user", "postgres");
+    private final String password = System.getProperty("privfastsm.test.password", "postgres");
+
+    private final List<Set<Long>> dispatched = new CopyOnWriteArrayList<>();
+    private final List<Long> accountIds = new ArrayList<>();
+    private Connection connection;
+    private StoreChangeWatcher watcher;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = DriverManager.getConnection(url, user, password);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create schema if not exists privfastsm");
+            statement.execute("create table if not exists privfastsm.accounts " +
+                    "(id bigserial primary key, login varchar(255), email varchar(255))");
+            statement.execute("create table if not exists privfastsm.userroles " +
+                    "(id bigserial primary key, name varchar(255))");
+            statement.execute("create table if not exists privfastsm.account_role (account_id bigint, role_id bigint)");
+            statement.execute("create table if not exists privfastsm.rights (id bigserial primary key, userrole bigint)");
+        }
+        new UserStoreSchema(url, user, password, true).ensureChangeTriggers();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        if (watcher != null) {
+            watcher.stop();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("delete from privfastsm.accounts where id = ?")) {
+            for (Long accountId : accountIds) {
+                statement.setLong(1, accountId);
+                statement.executeUpdate();
+            }
+        }
+        connection.close();
+    }
+
+    @Test
+    void updateByAnotherNodeInvalidatesCachedSnapshot() throws Exception {
+        long accountId = insertAccount("watcher-listen");
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60_000, 0, false);
+        cache.put(COMPONENT_ID, snapshot(accountId, "watcher-listen"), cache.generation());
+        CountDownLatch invalidated = new CountDownLatch(1);
+        watcher = new StoreChangeWatcher(url, user, password, true, 200, listener(changed -> {
+            changed.forEach(cache::invalidateAccount);
+            if (changed.contains(accountId)) invalidated.countDown();
+        }));
+        watcher.start();
+
+        // подписка LISTEN выполняется в потоке наблюдателя: изменение повторяется, пока уведомление не получено
+        for (int attempt = 0; attempt < 50 && invalidated.getCount() > 0; attempt++) {
+            updateEmail(connection, accountId, "listen" + attempt + "@example.org");
+            invalidated.await(200, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(0, invalidated.getCount());
+        assertNull(cache.getById(COMPONENT_ID, accountId));
+    }
+
+    @Test
+    void eachChangeIsReadOnce() throws SQLException {
+        long accountId = insertAccount("watcher-poll");
+        watcher = new StoreChangeWatcher(url, user, password, false, 60_000, listener(dispatched::add));
+        assertTrue(watcher.readChanges(connection, true));
+
+        updateEmail(connection, accountId, "poll@example.org");
+        assertTrue(watcher.readChanges(connection, true));
+        assertTrue(watcher.readChanges(connection, true));
+
+        assertEquals(Collections.singletonList(Collections.singleton(accountId)), dispatched);
+    }
+
+    @Test
+    void changeCommittedAfterLaterIdIsNotLost() throws SQLException {
+        long first = insertAccount("watcher-gap-1");
+        long second = insertAccount("watcher-gap-2");
+        watcher = new StoreChangeWatcher(url, user, password, false, 60_000, listener(dispatched::add));
+        watcher.readChanges(connection, true);
+
+        try (Connection slow = DriverManager.getConnection(url, user, password)) {
+            slow.setAutoCommit(false);
+            // id журнала выдан открытой транзакции, запись с большим id фиксируется раньше
+            updateEmail(slow, first, "slow@example.org");
+            updateEmail(connection, second, "fast@example.org");
+            watcher.readChanges(connection, true);
+            slow.commit();
+        }
+        watcher.readChanges(connection, true);
+
+        assertEquals(2, dispatched.size());
+        assertEquals(Collections.singleton(second), dispatched.get(0));
+        assertEquals(Collections.singleton(first), dispatched.get(1));
+    }
+
+    private long insertAccount(String login) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into privfastsm.accounts (login, email) values (?, ?) returning id")) {
+            statement.setString(1, login + "-" + System.nanoTime());
+            statement.setString(2, login + "@example.org");
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                accountIds.add(rs.getLong(1));
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private static void updateEmail(Connection connection, long accountId, String email) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "update privfastsm.accounts set email = ? where id = ?")) {
+            statement.setString(1, email);
+            statement.setLong(2, accountId);
+            statement.executeUpdate();
+        }
+    }
+
+    private static UserSnapshot snapshot(long accountId, String login) {
+        UserEntity entity = new UserEntity();
+        entity.setAccountId(accountId);
+        entity.setUsername(login);
+        return UserSnapshot.of(entity);
+    }
+
+    private static StoreChangeListener listener(Consumer<Set<Long>> accountsChanged) {
+        return new StoreChangeListener() {
+            @Override
+            public void accountsChanged(Set<Long> accountIds) {
+                accountsChanged.accept(accountIds);
+            }
+
+            @Override
+            public void rolesChanged(Set<Long> roleIds) {
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+
+}
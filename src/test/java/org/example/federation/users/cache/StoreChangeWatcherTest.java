@@ -0,0 +1,48 @@
+package org.example.federation.users.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Разбор уведомлений канала privfastsm_changes вида "{account_id}:{role_id}"
+ */
+class StoreChangeWatcherTest {
+
+    private final Set<Long> accountIds = new HashSet<>();
+    private final Set<Long> roleIds = new HashSet<>();
+
+    @Test
+    void accountAndRoleAreParsed() {
+        StoreChangeWatcher.parse("12:7", accountIds, roleIds);
+
+        assertEquals(Collections.singleton(12L), accountIds);
+        assertEquals(Collections.singleton(7L), roleIds);
+    }
+
+    @Test
+    void emptyPartsAreSkipped() {
+        StoreChangeWatcher.parse("12:", accountIds, roleIds);
+        StoreChangeWatcher.parse(":7", accountIds, roleIds);
+        StoreChangeWatcher.parse("15", accountIds, roleIds);
+
+        assertEquals(new HashSet<>(Arrays.asList(12L, 15L)), accountIds);
+        assertEquals(Collections.singleton(7L), roleIds);
+    }
+
+    @Test
+    void malformedOrMissingPayloadIsIgnored() {
+        StoreChangeWatcher.parse(null, accountIds, roleIds);
+        StoreChangeWatcher.parse("abc:7", accountIds, roleIds);
+
+        assertTrue(accountIds.isEmpty());
+        assertTrue(roleIds.isEmpty());
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.example.federation.users.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Поиск по триграммному индексу: отказ от ответа, AND по словам, порядок (login, id) и постраничный вывод
+ */
+class UserSearchIndexTest {
+
+    private UserSearchIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new UserSearchIndex();
+        index.put(1L, "ivanov", "ivanov@example.org", "Иван", "Иванов", null, "IT", "Developer");
+        index.put(2L, "petrov", "petrov@example.org", "Петр", "Петров", null, "IT", "Tester");
+        index.put(3L, "Sidorov", "sidorov@example.org", "Сидор", "Сидоров", null, "Sales", "Manager");
+        index.put(4L, null, "nologin@example.org", null, null, null, "IT", "Developer");
+        index.put(5L, "ivanov", "ivanov2@example.org", null, null, null, "HR", null);
+        index.setReady(true);
+    }
+
+    @Test
+    void notReadyIndexDeclines() {
+        index.setReady(false);
+
+        assertNull(index.search("ivanov", 0, -1));
+    }
+
+    @Test
+    void shortOrWildcardWordsAreDeclined() {
+        assertNull(index.search("iv", 0, -1));
+        assertNull(index.search("ivanov it", 0, -1));
+        assertNull(index.search("iva*", 0, -1));
+        assertNull(index.search("  ", 0, -1));
+    }
+
+    @Test
+    void everyWordMustMatchSomeField() {
+        assertEquals(Arrays.asList(1L, 4L), index.search("EXAMPLE.org veloper", 0, -1));
+        assertEquals(Collections.singletonList(1L), index.search("example.org veloper ivan", 0, -1));
+        assertEquals(Collections.emptyList(), index.search("sales developer", 0, -1));
+        assertEquals(Collections.emptyList(), index.search("unknown", 0, -1));
+    }
+
+    @Test
+    void wordsDoNotSpanFields() {
+        // "ov\ni" - окончание login и начало email не образуют слово
+        assertEquals(Collections.emptyList(), index.search("ovivanov", 0, -1));
+    }
+
+    @Test
+    void resultsAreOrderedByLoginThenIdWithNullsLast() {
+        // login сравнивается методом String.compareTo: "Sidorov" раньше "ivanov"
+        assertEquals(Arrays.asList(3L, 1L, 5L, 2L, 4L), index.search("exa", 0, -1));
+    }
+
+    @Test
+    void pagesAreCutFromOrderedResults() {
+        assertEquals(Arrays.asList(1L, 5L), index.search("exa", 1, 2));
+        assertEquals(Collections.singletonList(4L), index.search("exa", 4, 10));
+        assertEquals(Collections.emptyList(), index.search("exa", 10, 10));
+    }
+
+    @Test
+    void updatedAndRemovedUsersLeaveIndex() {
+        index.put(2L, "petrov", "petrov@corp.local", null, null, null, "Sales", null);
+        index.remove(3L);
+
+        assertEquals(Collections.singletonList(2L), index.search("corp.local", 0, -1));
+        assertEquals(Collections.emptyList(), index.search("tester", 0, -1));
+        assertEquals(4, index.size());
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.example.federation.users.cache;
+
+import org.example.federation.users.model.UserEntity;
+import org.example.federation.users.model.UserSnapshot;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Кэш снимков пользователей: снимок, загруженный до удаления записей кэша, в кэш не возвращается;
+ * в режиме без учета регистра поиск по login и email кэшем не обслуживается
+ */
+class UserSnapshotCacheTest {
+
+    private static final String COMPONENT_ID = "c1";
+
+    @Test
+    void snapshotLoadedBeforeInvalidationIsDropped() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60_000, 0, false);
+        long generation = cache.generation();
+        // запись изменена (и сброшена), пока снимок загружался
+        cache.invalidateAccount(1L);
+
+        cache.put(COMPONENT_ID, snapshot(1L, "alice", "alice@example.org"), generation);
+
+        assertNull(cache.getById(COMPONENT_ID, 1L));
+        assertNull(cache.getByUsername(COMPONENT_ID, "alice"));
+    }
+
+    @Test
+    void everyRemovalMovesGeneration() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60_000, 0, false);
+        long generation = cache.generation();
+
+        cache.invalidate(COMPONENT_ID, 1L);
+        cache.invalidateUsername(COMPONENT_ID, "alice");
+        cache.invalidateEmail(COMPONENT_ID, "alice@example.org");
+        cache.clear(COMPONENT_ID);
+        cache.clear();
+
+        assertEquals(generation + 5, cache.generation());
+    }
+
+    @Test
+    void snapshotWithCurrentGenerationIsCached() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60_000, 0, false);
+        cache.invalidateAccount(1L);
+
+        cache.put(COMPONENT_ID, snapshot(1L, "alice", "alice@example.org"), cache.generation());
+
+        assertEquals("alice", cache.getById(COMPONENT_ID, 1L).getUsername());
+        assertEquals(1L, cache.getByEmail(COMPONENT_ID, "alice@example.org").getAccountId());
+    }
+
+    @Test
+    void ignoreCaseCacheServesOnlyLookupsById() {
+        UserSnapshotCache cache = new UserSnapshotCache(100, 60_000, 60_000, true);
+
+        cache.put(COMPONENT_ID, snapshot(1L, "Alice", "Alice@example.org"), cache.generation());
+
+        assertEquals("Alice", cache.getById(COMPONENT_ID, 1L).getUsername());
+        assertNull(cache.getByUsername(COMPONENT_ID, "Alice"));
+        assertNull(cache.getByEmail(COMPONENT_ID, "alice@example.org"));
+        assertNull(cache.getStaleByUsername(COMPONENT_ID, "alice"));
+    }
+
+    static UserSnapshot snapshot(Long accountId, String username, String email) {
+        UserEntity entity = new UserEntity();
+        entity.setAccountId(accountId);
+        entity.setUsername(username);
+        entity.setEmail(email);
+        return UserSnapshot.of(entity);
+    }
+
+}
@@ -0,0 +1,235 @@
+package org.example.federation.users.search;
+
+import org.example.federation.users.cache.PageCursorCache;
+import org.example.federation.users.model.UserEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyChar;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Условия запроса UserSearchQuery на уровне Criteria API: для каждого параметра поиска проверяется,
+ * какие условия строятся над полями UserEntity
+ */
+class UserSearchQueryTest {
+
+    private static final String[] SEARCH_FIELDS =
+            {"username", "email", "firstName", "lastName", "middleName", "department", "position"};
+
+    private CriteriaBuilder cb;
+    private Root<UserEntity> root;
+    private final Map<String, Path<?>> paths = new HashMap<>();
+    private final Map<Expression<?>, Expression<String>> lowered = new HashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        cb = mock(CriteriaBuilder.class);
+        root = mock(Root.class);
+        // каждое поле сущности и его lower() - отдельные выражения, чтобы проверять условия по полям
+        when(root.get(anyString())).thenAnswer(invocation -> path(invocation.getArgument(0)));
+        when(cb.lower(any())).thenAnswer(invocation -> lower(invocation.getArgument(0)));
+    }
+
+    @Test
+    void enabledTrueMatchesActiveStatus() {
+        Predicate active = mock(Predicate.class);
+        when(cb.equal(path("status"), "ACTIVE")).thenReturn(active);
+
+        List<Predicate> predicates = query(UserModel.ENABLED, "true").predicates(cb, root);
+
+        assertEquals(Collections.singletonList(active), predicates);
+    }
+
+    @Test
+    void enabledFalseMatchesAnyOtherOrMissingStatus() {
+        Predicate notActive = mock(Predicate.class);
+        Predicate noStatus = mock(Predicate.class);
+        Predicate disabled = mock(Predicate.class);
+        when(cb.notEqual(path("status"), "ACTIVE")).thenReturn(notActive);
+        when(cb.isNull(path("status"))).thenReturn(noStatus);
+        when(cb.or(notActive, noStatus)).thenReturn(disabled);
+
+        List<Predicate> predicates = query(UserModel.ENABLED, "false").predicates(cb, root);
+
+        assertEquals(Collections.singletonList(disabled), predicates);
+    }
+
+    @Test
+    void textParameterMatchesSubstringIgnoringCase() {
+        List<Predicate> predicates = query(UserModel.EMAIL, " Example.ORG ").predicates(cb, root);
+
+        assertEquals(1, predicates.size());
+        verify(cb).like(lower(path("email")), "%example.org%", '\\');
+    }
+
+    @Test
+    void exactComparesWholeValueIgnoringCase() {
+        Map<String, String> params = new HashMap<>();
+        params.put(UserModel.USERNAME, " John ");
+        params.put(UserModel.EXACT, "true");
+
+        List<Predicate> predicates = new UserSearchQuery(params).predicates(cb, root);
+
+        assertEquals(1, predicates.size());
+        verify(cb).equal(lower(path("username")), "john");
+        verify(cb, never()).like(any(), anyString(), anyChar());
+    }
+
+    @Test
+    void customColumnsMatchExactly() {
+        Map<String, String> params = new HashMap<>();
+        params.put("phone", " 123-45 ");
+        params.put("ip_address", "10.0.0.1");
+        params.put("department", "IT");
+
+        List<Predicate> predicates = new UserSearchQuery(params).predicates(cb, root);
+
+        assertEquals(3, predicates.size());
+        verify(cb).equal(path("phone"), "123-45");
+        verify(cb).equal(path("ipAddress"), "10.0.0.1");
+        verify(cb).equal(path("department"), "IT");
+    }
+
+    @Test
+    void middleNameIsSearchedAsText() {
+        query("middle_name", "Ivan").predicates(cb, root);
+
+        verify(cb).like(lower(path("middleName")), "%ivan%", '\\');
+        verify(cb, never()).equal(path("middleName"), "Ivan");
+    }
+
+    @Test
+    void unsupportedParametersAreIgnored() {
+        Map<String, String> params = new HashMap<>();
+        params.put("emailVerified", "true");
+        params.put(UserModel.EXACT, "false");
+
+        assertTrue(new UserSearchQuery(params).predicates(cb, root).isEmpty());
+    }
+
+    @Test
+    void everySearchWordMatchesAnySearchColumn() {
+        List<Predicate> predicates = query(UserModel.SEARCH, " Foo  ba*r * ").predicates(cb, root);
+
+        assertEquals(2, predicates.size());
+        for (String field : SEARCH_FIELDS) {
+            verify(cb).like(lower(path(field)), "%foo%", '\\');
+            verify(cb).like(lower(path(field)), "%ba%r%", '\\');
+        }
+    }
+
+    @Test
+    void likeWildcardsOfSearchAreMatchedLiterally() {
+        query(UserModel.SEARCH, "50%_a\\b*").predicates(cb, root);
+        query(UserModel.USERNAME, "john_doe").predicates(cb, root);
+
+        for (String field : SEARCH_FIELDS) {
+            verify(cb).like(lower(path(field)), "%50\\%\\_a\\\\b%%", '\\');
+        }
+        verify(cb).like(lower(path("username")), "%john\\_doe%", '\\');
+    }
+
+    @Test
+    void tokenizeNormalizesSearchString() {
+        assertEquals(Arrays.asList("foo", "bar"), UserSearchQuery.tokenize("  Foo * BAR "));
+        assertTrue(UserSearchQuery.tokenize(null).isEmpty());
+        assertEquals("foo bar", UserSearchQuery.forSearch("FOO   bar").getSearchKey());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void selectAfterCursorIsBoundedByLoginAndSkipsNullLogins() {
+        EntityManager em = mock(EntityManager.class);
+        CriteriaQuery<UserEntity> criteria = mock(CriteriaQuery.class, RETURNS_SELF);
+        TypedQuery<UserEntity> typed = mock(TypedQuery.class);
+        when(em.getCriteriaBuilder()).thenReturn(cb);
+        when(cb.createQuery(UserEntity.class)).thenReturn(criteria);
+        when(criteria.from(UserEntity.class)).thenReturn(root);
+        when(em.createQuery(criteria)).thenReturn(typed);
+
+        TypedQuery<UserEntity> query = UserSearchQuery.forSearch("foo")
+                .select(em, new PageCursorCache.Cursor("bob", 5L));
+
+        assertSame(typed, query);
+        verify(cb).greaterThanOrEqualTo(this.<String>path("username"), "bob");
+        verify(cb).greaterThan(this.<String>path("username"), "bob");
+        verify(cb).greaterThan(this.<Long>path("accountId"), 5L);
+        verify(cb, never()).isNull(path("username"));
+        verify(cb).asc(path("username"));
+        verify(cb).asc(path("accountId"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void selectAfterNullLoginCursorReadsNullLoginsById() {
+        EntityManager em = mock(EntityManager.class);
+        CriteriaQuery<UserEntity> criteria = mock(CriteriaQuery.class, RETURNS_SELF);
+        when(em.getCriteriaBuilder()).thenReturn(cb);
+        when(cb.createQuery(UserEntity.class)).thenReturn(criteria);
+        when(criteria.from(UserEntity.class)).thenReturn(root);
+
+        UserSearchQuery.forSearch("foo").select(em, new PageCursorCache.Cursor(null, 7L));
+
+        verify(cb).isNull(path("username"));
+        verify(cb).greaterThan(this.<Long>path("accountId"), 7L);
+        verify(cb, never()).asc(path("username"));
+        verify(cb).asc(path("accountId"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void selectWithoutCursorStartsFromFirstRow() {
+        EntityManager em = mock(EntityManager.class);
+        CriteriaQuery<UserEntity> criteria = mock(CriteriaQuery.class, RETURNS_SELF);
+        when(em.getCriteriaBuilder()).thenReturn(cb);
+        when(cb.createQuery(UserEntity.class)).thenReturn(criteria);
+        when(criteria.from(UserEntity.class)).thenReturn(root);
+
+        UserSearchQuery.forSearch("foo").select(em);
+
+        verify(cb, never()).isNull(path("username"));
+        verify(cb).asc(path("username"));
+        verify(cb).asc(path("accountId"));
+    }
+
+    private static UserSearchQuery query(String name, String value) {
+        return new UserSearchQuery(Collections.singletonMap(name, value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Path<T> path(String field) {
+        return (Path<T>) paths.computeIfAbsent(field, name -> mock(Path.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Expression<String> lower(Expression<?> expression) {
+        return lowered.computeIfAbsent(expression, key -> mock(Expression.class));
+    }
+
+}